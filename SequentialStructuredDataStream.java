@@ -17,11 +17,39 @@
  * under the License.
  */
  
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Stack;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32C;
 
 /*
   * SequentialStructuredDataStream (java and c#)
@@ -30,8 +58,10 @@ import java.util.Stack;
  * May 2014
  */
 
-public class SequentialStructuredDataStream {
+public class SequentialStructuredDataStream implements Closeable, Flushable {
 	private static final String CURRENT_VERSION = "ssds0";
+	private static final String SIZED_VERSION = "ssds1";
+	private static final String DICT_GROUP_PREFIX = "ssds:dict:";    // string dictionaries, apart from the user's groups
 	private static final int RAW_TYPE_VARINT = 0;
 	private static final int RAW_TYPE_FIXED64 = 1;
 	private static final int RAW_TYPE_LENGTH_DELIMITED = 2;
@@ -39,6 +69,12 @@ public class SequentialStructuredDataStream {
 	private static final int RAW_TYPE_END_GROUP = 4;
 	private static final int RAW_TYPE_FIXED32 = 5;
 	private static final int RAW_TYPE_SCHEMA = 6;
+	private static final int RAW_TYPE_SIZED_START_GROUP = 7;  // ssds1, start followed by the byte length up to and including the end
+
+	private static final int DEFAULT_BUFFER_SIZE = 8192;
+	private static final int DEFAULT_WINDOW_SIZE = 1 << 28;
+	private static final int MAX_BUFFERED_VALUE = 1 << 26;
+	private static final Charset UTF8 = Charset.forName("utf-8");
 
 	private static final int TAG_TYPE_BITS = 3;
 	private static final int TAG_TYPE_MASK = (1 << TAG_TYPE_BITS) - 1;
@@ -55,81 +91,358 @@ public class SequentialStructuredDataStream {
 	private static final byte ITM_TYPE_DOUBLE = (int)'d';     // 'd' - double
 	private static final byte ITM_TYPE_STRING = (int)'s';     // 's' - string
 	private static final byte ITM_TYPE_BYTES = (int)'a';      // 'a' - bytes
+	private static final byte ITM_TYPE_DICT_STRING = (int)'k'; // 'k' - string, a varint entry of its isa or a literal
+	private static final byte ITM_TYPE_UINT32_ARRAY = (int)'I'; // 'I' - packed uint32 array
+	private static final byte ITM_TYPE_UINT64_ARRAY = (int)'J'; // 'J' - packed uint64 array
+	private static final byte ITM_TYPE_SINT32_ARRAY = (int)'U'; // 'U' - packed sint32 array
+	private static final byte ITM_TYPE_SINT64_ARRAY = (int)'V'; // 'V' - packed sint64 array
+	private static final byte ITM_TYPE_SINGLE_ARRAY = (int)'F'; // 'F' - packed single array
+	private static final byte ITM_TYPE_DOUBLE_ARRAY = (int)'D'; // 'D' - packed double array
+	private static final byte ITM_TYPE_DELTA_UINT32_ARRAY = (int)'W'; // 'W' - delta coded uint32 array
+	private static final byte ITM_TYPE_DELTA_UINT64_ARRAY = (int)'X'; // 'X' - delta coded uint64 array
+	private static final byte ITM_TYPE_DELTA_SINT32_ARRAY = (int)'Y'; // 'Y' - delta coded sint32 array
+	private static final byte ITM_TYPE_DELTA_SINT64_ARRAY = (int)'Z'; // 'Z' - delta coded sint64 array
+
+	private static final int DELTA_BLOCK = 128;
 	private static final byte ITM_TYPE_STRUCT = (int)'m';    // 'm' - structure
 
+	/*
+	 * item type codes returned by itemType(), integer types first so that
+	 * range checks can be used, the names are what itemTypeName() returns.
+	 */
+	public static final int TYPE_NONE = 0;
+	public static final int TYPE_START_GROUP = 1;
+	public static final int TYPE_END_GROUP = 2;
+	public static final int TYPE_BOOLEAN = 3;
+	public static final int TYPE_ENUM = 4;
+	public static final int TYPE_UINT32 = 5;
+	public static final int TYPE_UINT64 = 6;
+	public static final int TYPE_SINT32 = 7;
+	public static final int TYPE_SINT64 = 8;
+	public static final int TYPE_FIXED32 = 9;
+	public static final int TYPE_FIXED64 = 10;
+	public static final int TYPE_SINGLE = 11;
+	public static final int TYPE_DOUBLE = 12;
+	public static final int TYPE_STRING = 13;
+	public static final int TYPE_BYTES = 14;
+	public static final int TYPE_UINT32_ARRAY = 15;
+	public static final int TYPE_UINT64_ARRAY = 16;
+	public static final int TYPE_SINT32_ARRAY = 17;
+	public static final int TYPE_SINT64_ARRAY = 18;
+	public static final int TYPE_SINGLE_ARRAY = 19;
+	public static final int TYPE_DOUBLE_ARRAY = 20;
+
+	private static final String[] TYPE_NAMES = {
+		"", "start_group", "end_group", "boolean", "enum", "uint32", "uint64", "sint32",
+		"sint64", "fixed32", "fixed64", "single", "double", "string", "bytes",
+		"uint32[]", "uint64[]", "sint32[]", "sint64[]", "single[]", "double[]"
+	};
+
 	private class Itm{
 		public byte type;
 		public String name;
 		public int id;
 		public Grp isa = null;
+		public Grp parent = null;
+		public int hits = 0;            // writer: string dictionary lookups that found an entry
+		public ByteBuffer utf8 = null;  // reader: bytes of a string dictionary entry, made when first asked for
+		public int slot = -2;           // reader: component bound by its group's codec, -1 none, -2 not looked up yet
+		public Itm copy = null;         // reader: item of the writer that append() copies this item to
 	}
 	private class Grp{
 		public byte type;
 		public String name;
 		public int count = 0;
+		public boolean emitted = false;
+		public int emittedCount = 0;
+		public int preloadedCount = -1;     // items that came with a preloaded schema, -1 if the group did not
+		public boolean stale = false;       // reader: kept by reset(), not yet declared again by the new stream
+		public SsdsRecordCodec<?> codec = null;    // record codec last used on structures of this type
+		public FieldHandle[] handles = null;       // writer: the codec's components resolved in this group
 		public HashMap<String, Itm> namedItems = new HashMap<String, Itm>();
-		public HashMap<Integer, Itm> indexedItems = new HashMap<Integer, Itm>();
+		public Itm[] indexedItems = new Itm[8];
+
+		public void add(final Itm item)
+		{
+			item.id = ++count;
+			item.parent = this;
+			if (count == indexedItems.length)
+			{
+				indexedItems = Arrays.copyOf(indexedItems, count * 2);
+			}
+			indexedItems[count] = item;
+			namedItems.put(item.name, item);
+		}
+
+		public Itm get(final int id)
+		{
+			if (id <= 0 || id > count)
+			{
+				throw new RuntimeException("unknown item");
+			}
+			return indexedItems[id];
+		}
 	}
 
 	private final HashMap<String, Grp> namedGroups = new HashMap<String, Grp>(); 
-	private Stack<Itm> stack = new Stack<Itm>();
-	private final InputStream inputStream  ;
-	private final OutputStream outputStream  ;
+	private Grp[] indexedGroups = new Grp[16];    // namedGroups in declaration order, walked without an iterator
+	private int groupCount = 0;
+	private String[] nameCache = null;
+	private Itm[] stack = new Itm[16];
+	// reader: stream offset where a sized group ends or -1, writer: buffer position where a sized group's content starts
+	private long[] stackMarks = new long[16];
+	private int depth = 0;
+	private InputStream inputStream  ;
+	private OutputStream outputStream  ;
 	private boolean eos = false;
 	private Grp version = null;
+	private byte[] writeBuffer;
+	private int writePosition = 0;
+	private boolean sizedGroups = false;
+	private int stringDictionary = 0;
+	private HashSet<String> stringDictionaryItems = null;
+	private boolean deltaArrays = false;
+	private HashSet<String> deltaArrayItems = null;
+	private int sizedOrigin = 0;
+	private ByteBuffer readBuffer;
+	private final FileChannel fileChannel;
+	private final int windowSize;
+	private long windowPosition = 0;
+	private long readOrigin = 0;
+	private long writeOffset = 0;
+	private SequentialStructuredDataStream indexWriter = null;
+	private int indexInterval = 0;
+	private int indexSchema = 0;
+	private long indexRecords = 0;
+	private Idx index = null;
+	private WritableByteChannel asyncChannel = null;
+	private AsynchronousFileChannel asyncFile = null;
+	private long asyncPosition = 0;
+	private ExecutorService asyncExecutor = null;
+	private Future<?> asyncPending = null;
+	private RuntimeException asyncFailure = null;
+	private byte[] asyncSpare = null;
+	private boolean push = false;
+	private boolean needsInput = false;
+	private int skipDepth = 0;
+	private int pushMark = 0;
+	private byte[] dictionary = null;
+	private int dictionaryHash = 0;
 	
 	public static SequentialStructuredDataStream createReader(final InputStream stream)
 	{
-		return new SequentialStructuredDataStream (null, stream) ;
+		return createReader(stream, DEFAULT_BUFFER_SIZE) ;
+	}
+
+	/*
+	 * the stream is read in blocks of up to bufferSize bytes and items are decoded
+	 * from that buffer, so the stream does not need to be buffered by the caller.
+	 */
+	public static SequentialStructuredDataStream createReader(final InputStream stream, final int bufferSize)
+	{
+		if (bufferSize < 16) {
+			throw new RuntimeException ("buffer size too small") ;
+		}
+		return new SequentialStructuredDataStream (null, stream, null, bufferSize) ;
+	}
+
+	/*
+	 * a reader without a stream, bytes are handed to it with feed() as they arrive and
+	 * readItem() returns false while the next item is incomplete, see needsInput().
+	 */
+	public static SequentialStructuredDataStream createPushReader()
+	{
+		final SequentialStructuredDataStream r = new SequentialStructuredDataStream (null, null, null, DEFAULT_BUFFER_SIZE) ;
+		r.readBuffer = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE) ;
+		r.readBuffer.order(ByteOrder.LITTLE_ENDIAN) ;
+		r.readBuffer.limit(0) ;
+		r.push = true ;
+		return r ;
+	}
+
+	/*
+	 * a reader over the bytes remaining in buffer, decoded in place without copying.
+	 * the position and limit of buffer are left unchanged.
+	 */
+	public static SequentialStructuredDataStream createReader(final ByteBuffer buffer)
+	{
+		final SequentialStructuredDataStream r = new SequentialStructuredDataStream (null, null, null, DEFAULT_BUFFER_SIZE) ;
+		r.readBuffer = buffer.slice() ;
+		r.readBuffer.order(ByteOrder.LITTLE_ENDIAN) ;
+		return r ;
+	}
+
+	public static SequentialStructuredDataStream createReader(final Path path)
+	{
+		try {
+			return createReader(FileChannel.open(path, StandardOpenOption.READ)) ;
+		} catch (IOException e) {
+			throw new RuntimeException ("cannot open " + path) ;
+		}
+	}
+
+	public static SequentialStructuredDataStream createReader(final FileChannel channel)
+	{
+		return createReader(channel, DEFAULT_WINDOW_SIZE) ;
+	}
+
+	/*
+	 * the file is read through read-only mappings of up to windowSize bytes starting at the
+	 * channel's current position, the next window is mapped when decoding reaches the end of
+	 * the current one, so files larger than 2 GB are read as a chain of windows.
+	 */
+	public static SequentialStructuredDataStream createReader(final FileChannel channel, final int windowSize)
+	{
+		if (windowSize < 16) {
+			throw new RuntimeException ("window size too small") ;
+		}
+		return new SequentialStructuredDataStream (null, null, channel, windowSize) ;
 	}
 
 	public static SequentialStructuredDataStream createWriter(final OutputStream stream)
 	{
-		return new SequentialStructuredDataStream (stream, null) ;
+		return createWriter(stream, DEFAULT_BUFFER_SIZE) ;
+	}
+
+	/*
+	 * bytes are encoded into a buffer of bufferSize bytes and handed to the stream
+	 * only when it fills up, on flush() or on close().
+	 */
+	public static SequentialStructuredDataStream createWriter(final OutputStream stream, final int bufferSize)
+	{
+		if (bufferSize < 16) {
+			throw new RuntimeException ("buffer size too small") ;
+		}
+		return new SequentialStructuredDataStream (stream, null, null, bufferSize) ;
+	}
+
+	/*
+	 * writes through a background thread with two buffers, one is encoded into while
+	 * the other is written to the channel. flush() returns once everything before it
+	 * has reached the channel, a failed write is thrown on the next write, flush or
+	 * close with the cause attached.
+	 */
+	public static SequentialStructuredDataStream createWriter(final WritableByteChannel channel, final int bufferSize)
+	{
+		final SequentialStructuredDataStream w = createAsyncWriter(bufferSize) ;
+		w.asyncChannel = channel ;
+		return w ;
 	}
 
-	private SequentialStructuredDataStream(final OutputStream outputStream, final InputStream inputStream)
+	/*
+	 * like createWriter(channel, bufferSize) for a file channel, writing from position on.
+	 */
+	public static SequentialStructuredDataStream createWriter(final AsynchronousFileChannel channel, final long position, final int bufferSize)
+	{
+		final SequentialStructuredDataStream w = createAsyncWriter(bufferSize) ;
+		w.asyncFile = channel ;
+		w.asyncPosition = position ;
+		return w ;
+	}
+
+	private static SequentialStructuredDataStream createAsyncWriter(final int bufferSize)
+	{
+		if (bufferSize < 16) {
+			throw new RuntimeException ("buffer size too small") ;
+		}
+		final SequentialStructuredDataStream w = new SequentialStructuredDataStream (null, null, null, bufferSize) ;
+		w.writeBuffer = new byte[bufferSize] ;
+		w.asyncExecutor = Executors.newSingleThreadExecutor(r -> {
+			final Thread t = new Thread(r, "ssds-writer") ;
+			t.setDaemon(true) ;
+			return t ;
+		}) ;
+		return w ;
+	}
+
+	private SequentialStructuredDataStream(final OutputStream outputStream, final InputStream inputStream, final FileChannel fileChannel, final int bufferSize)
 	{
 		this.inputStream = inputStream;
 		this.outputStream = outputStream;
+		this.fileChannel = fileChannel;
+		this.windowSize = bufferSize;
+		// readers get a small scratch buffer so stray writes are dropped as before
+		this.writeBuffer = new byte[outputStream != null ? bufferSize : 16];
+		this.readBuffer = ByteBuffer.allocate(inputStream != null ? bufferSize : 0);
+		this.readBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		this.readBuffer.limit(0);
+		if (fileChannel != null)
+		{
+			try {
+				this.windowPosition = fileChannel.position();
+				this.readOrigin = this.windowPosition;
+			} catch (IOException e) {
+				throw new RuntimeException ("cannot read") ;
+			}
+		}
 	}
 
+    /*
+     * groups and items are declared when first named and their schema records are
+     * emitted when first used, write tells whether this use emits them.
+     */
     private Grp ensureGroup(final boolean write, final String groupName, final byte groupType)
     {
-        Grp g = null;
-        if (namedGroups.containsKey(groupName))
+        Grp g = namedGroups.get(groupName);
+        if (g != null)
         {
-            g = namedGroups.get(groupName);
             if (g.type != groupType) {
             	throw new RuntimeException ("bad group type") ;
             }
         }
         else
         {
+            if (version == null && !writeVersion().equals(groupName))
+            {
+                ensureGroup(false, writeVersion(), ITM_TYPE_STRUCT);
+            }
             g = new Grp();
-            write_raw_varint32((1 << TAG_TYPE_BITS) | RAW_TYPE_SCHEMA);
-            write_rawbyte(groupType);
-            write_rawstring(groupName) ;
             g.type = groupType;
             g.name = groupName;
-            namedGroups.put(g.name, g);
+            group_put(g);
         }
         if (version == null)
         {
             version = g;
         }
+        if (write && !g.emitted)
+        {
+            final int mark = writePosition - sizedOrigin;
+            emitGroup(g);
+            write_hoist(mark);
+        }
         return g;
     }
 
+    private void emitGroup(final Grp g)
+    {
+        if (g != version && !version.emitted)
+        {
+            emitGroup(version);
+        }
+        g.emitted = true;
+        write_raw_varint32((1 << TAG_TYPE_BITS) | RAW_TYPE_SCHEMA);
+        write_rawbyte(g.type);
+        write_rawstring(g.name) ;
+        if (indexWriter != null)
+        {
+            index_schema("group", g.type, g.name, null, null);
+        }
+    }
+
     private Grp peekIsa(final boolean write)
     {
-        if (stack.size() > 0)
+        if (depth > 0)
+        {
+            return stack[depth - 1].isa;
+        }
+        if (write && indexWriter != null)
         {
-            return stack.peek().isa;
+            index_checkpoint();
         }
-        else if (version == null && write == true)
+        if (version == null && write == true)
         {
-            return ensureGroup(write, CURRENT_VERSION, ITM_TYPE_STRUCT);
+            return ensureGroup(write, writeVersion(), ITM_TYPE_STRUCT);
         }
         else
         {
@@ -156,11 +469,10 @@ public class SequentialStructuredDataStream {
 
     private Itm ensureItem(final boolean write, final Grp parent, final String itemName, final byte itemType, final Grp isa)
     {
-        Itm item = null;
+        Itm item = parent.namedItems.get(itemName);
 
-        if (parent.namedItems.containsKey(itemName))
+        if (item != null)
         {
-            item = parent.namedItems.get(itemName);
             if (itemType != item.type)
             {
                 throw new RuntimeException("itemtypemismatch");
@@ -169,30 +481,373 @@ public class SequentialStructuredDataStream {
         else
         {
             item = new Itm();
-            item.id = ++parent.count;
             item.name = itemName;
             item.type = itemType;
             item.isa = isa;
-            parent.namedItems.put(item.name, item);
-            parent.indexedItems.put(item.id, item);
+            parent.add(item);
+        }
+        if (write && item.id > parent.emittedCount)
+        {
+            final int mark = writePosition - sizedOrigin;
+            emitItem(item);
+            write_hoist(mark);
+        }
+        return item;
+    }
+
+    /*
+     * the reader numbers items in the order their schema records arrive, so items
+     * declared earlier in the same group are emitted first.
+     */
+    private void emitItem(final Itm item)
+    {
+        final Grp parent = item.parent;
+        while (parent.emittedCount < item.id)
+        {
+            Itm next = parent.indexedItems[parent.emittedCount + 1];
+            if (!parent.emitted)
             {
-                if (item.isa == null) {
-                    write_raw_varint32((2 << TAG_TYPE_BITS) | RAW_TYPE_SCHEMA);
-                }
-                else {
-                    write_raw_varint32((3 << TAG_TYPE_BITS) | RAW_TYPE_SCHEMA);
-                }
-                write_rawbyte(item.type);
-                write_rawstring(item.name); 
-                write_rawstring(parent.name); 
-                if (item.isa != null) {
-                	write_rawstring(item.isa.name); 
-                }
+                emitGroup(parent);
+            }
+            if (next.isa != null && !next.isa.emitted)
+            {
+                emitGroup(next.isa);
+            }
+            parent.emittedCount++;
+            if (next.isa == null) {
+                write_raw_varint32((2 << TAG_TYPE_BITS) | RAW_TYPE_SCHEMA);
+            }
+            else {
+                write_raw_varint32((3 << TAG_TYPE_BITS) | RAW_TYPE_SCHEMA);
+            }
+            write_rawbyte(next.type);
+            write_rawstring(next.name); 
+            write_rawstring(parent.name); 
+            if (next.isa != null) {
+            	write_rawstring(next.isa.name); 
+            }
+            if (indexWriter != null)
+            {
+                index_schema("item", next.type, next.name, parent.name, next.isa == null ? null : next.isa.name);
+            }
+        }
+    }
+
+    /*
+     * resolves a field of the top level once so that it can be written without
+     * name lookups, see field(structName, itemName, type).
+     */
+    public FieldHandle field(final String itemName, final int type)
+    {
+        return new FieldHandle(ensureGroup(false, writeVersion(), ITM_TYPE_STRUCT), itemName, type);
+    }
+
+    /*
+     * resolves a field of the structure type structName (the type name given to
+     * writeStart) once, the handle is then passed to the writeXxx(FieldHandle, ...)
+     * methods while that structure is the innermost one open. nothing is written
+     * until the handle is first used. start groups and enums take itemName as their
+     * type name, as writeStart(name) and writeEnum(name, value) do.
+     */
+    public FieldHandle field(final String structName, final String itemName, final int type)
+    {
+        return new FieldHandle(ensureGroup(false, structName, ITM_TYPE_STRUCT), itemName, type);
+    }
+
+    public final class FieldHandle
+    {
+        private final Itm item;
+        private final byte[] tag;
+        private final byte[] literalTag;    // string dictionary items: tag of a value written as a literal
+
+        private FieldHandle(final Grp parent, final String itemName, final int type)
+        {
+            final byte itemType;
+            final int wireType;
+            Grp isa = null;
+            switch (type)
+            {
+                case TYPE_START_GROUP: itemType = ITM_TYPE_STRUCT; wireType = RAW_TYPE_START_GROUP; isa = ensureGroup(false, itemName, ITM_TYPE_STRUCT); break;
+                case TYPE_BOOLEAN: itemType = ITM_TYPE_BOOLEAN; wireType = RAW_TYPE_VARINT; break;
+                case TYPE_ENUM: itemType = ITM_TYPE_ENUM; wireType = RAW_TYPE_VARINT; isa = ensureGroup(false, itemName, ITM_TYPE_ENUM); break;
+                case TYPE_UINT32: itemType = ITM_TYPE_UINT32; wireType = RAW_TYPE_VARINT; break;
+                case TYPE_UINT64: itemType = ITM_TYPE_UINT64; wireType = RAW_TYPE_VARINT; break;
+                case TYPE_SINT32: itemType = ITM_TYPE_SINT32; wireType = RAW_TYPE_VARINT; break;
+                case TYPE_SINT64: itemType = ITM_TYPE_SINT64; wireType = RAW_TYPE_VARINT; break;
+                case TYPE_FIXED32: itemType = ITM_TYPE_FIXED32; wireType = RAW_TYPE_FIXED32; break;
+                case TYPE_FIXED64: itemType = ITM_TYPE_FIXED64; wireType = RAW_TYPE_FIXED64; break;
+                case TYPE_SINGLE: itemType = ITM_TYPE_SINGLE; wireType = RAW_TYPE_FIXED32; break;
+                case TYPE_DOUBLE: itemType = ITM_TYPE_DOUBLE; wireType = RAW_TYPE_FIXED64; break;
+                case TYPE_STRING:
+                    if (dict_applies(parent, itemName))
+                    {
+                        itemType = ITM_TYPE_DICT_STRING; wireType = RAW_TYPE_VARINT; isa = ensureGroup(false, DICT_GROUP_PREFIX + itemName, ITM_TYPE_ENUM);
+                    }
+                    else
+                    {
+                        itemType = ITM_TYPE_STRING; wireType = RAW_TYPE_LENGTH_DELIMITED;
+                    }
+                    break;
+                case TYPE_BYTES: itemType = ITM_TYPE_BYTES; wireType = RAW_TYPE_LENGTH_DELIMITED; break;
+                case TYPE_UINT32_ARRAY: itemType = delta_applies(itemName) ? ITM_TYPE_DELTA_UINT32_ARRAY : ITM_TYPE_UINT32_ARRAY; wireType = RAW_TYPE_LENGTH_DELIMITED; break;
+                case TYPE_UINT64_ARRAY: itemType = delta_applies(itemName) ? ITM_TYPE_DELTA_UINT64_ARRAY : ITM_TYPE_UINT64_ARRAY; wireType = RAW_TYPE_LENGTH_DELIMITED; break;
+                case TYPE_SINT32_ARRAY: itemType = delta_applies(itemName) ? ITM_TYPE_DELTA_SINT32_ARRAY : ITM_TYPE_SINT32_ARRAY; wireType = RAW_TYPE_LENGTH_DELIMITED; break;
+                case TYPE_SINT64_ARRAY: itemType = delta_applies(itemName) ? ITM_TYPE_DELTA_SINT64_ARRAY : ITM_TYPE_SINT64_ARRAY; wireType = RAW_TYPE_LENGTH_DELIMITED; break;
+                case TYPE_SINGLE_ARRAY: itemType = ITM_TYPE_SINGLE_ARRAY; wireType = RAW_TYPE_LENGTH_DELIMITED; break;
+                case TYPE_DOUBLE_ARRAY: itemType = ITM_TYPE_DOUBLE_ARRAY; wireType = RAW_TYPE_LENGTH_DELIMITED; break;
+                default:
+                    throw new RuntimeException("bad field type");
+            }
+            this.item = ensureItem(false, parent, itemName, itemType, isa);
+            if (this.item.isa != isa)
+            {
+                throw new RuntimeException("itemtypemismatch");
             }
+            this.tag = tag_bytes((this.item.id << TAG_TYPE_BITS) | wireType);
+            this.literalTag = itemType == ITM_TYPE_DICT_STRING ? tag_bytes((this.item.id << TAG_TYPE_BITS) | RAW_TYPE_LENGTH_DELIMITED) : null;
+        }
+
+        private SequentialStructuredDataStream owner()
+        {
+            return SequentialStructuredDataStream.this;
+        }
+    }
+
+    private static byte[] tag_bytes(int value)
+    {
+        int length = 1;
+        while ((value >>> (7 * length)) != 0)
+        {
+            length++;
+        }
+        final byte[] tag = new byte[length];
+        for (int i = 0; i < length - 1; i++)
+        {
+            tag[i] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        tag[length - 1] = (byte)value;
+        return tag;
+    }
+
+    private Itm write_tag(final FieldHandle field, final byte itemType)
+    {
+        return write_tag(field, itemType, field.tag);
+    }
+
+    private Itm write_tag(final FieldHandle field, final byte itemType, final byte[] tag)
+    {
+        final Itm item = field.item;
+        if (field.owner() != this || item.type != itemType)
+        {
+            throw new RuntimeException("itemtypemismatch");
+        }
+        if (peekIsa(true) != item.parent)
+        {
+            throw new RuntimeException("field not in current structure");
+        }
+        if (item.id > item.parent.emittedCount)
+        {
+            final int mark = writePosition - sizedOrigin;
+            emitItem(item);
+            write_hoist(mark);
+        }
+        if (itemType == ITM_TYPE_STRUCT && sizedGroups)
+        {
+            write_start(item);
+            return item;
+        }
+        if (writeBuffer.length - writePosition < tag.length)
+        {
+            write_room(tag.length);
+        }
+        for (int i = 0; i < tag.length; i++)
+        {
+            writeBuffer[writePosition++] = tag[i];
         }
         return item;
     }
 
+    public void writeStart(final FieldHandle field)
+    {
+        final Itm item = write_tag(field, ITM_TYPE_STRUCT);
+        if (!sizedGroups)
+        {
+            stack_push(item, -1);
+        }
+    }
+
+    public void writeString(final FieldHandle field, final String value)
+    {
+        if (value == null) return;
+        if (field.literalTag != null)
+        {
+            if (field.owner() != this)
+            {
+                throw new RuntimeException("itemtypemismatch");
+            }
+            final Itm entry = dict_entry(field.item, value);
+            if (entry != null)
+            {
+                write_tag(field, ITM_TYPE_DICT_STRING);
+                write_raw_varint32(entry.id);
+                return;
+            }
+            write_tag(field, ITM_TYPE_DICT_STRING, field.literalTag);
+            write_rawstring(value) ;
+            return;
+        }
+        write_tag(field, ITM_TYPE_STRING);
+        write_rawstring(value) ;
+    }
+
+    public void writeUInt32(final FieldHandle field, final int value)
+    {
+        write_tag(field, ITM_TYPE_UINT32);
+        write_raw_varint32(value);
+    }
+
+    public void writeUInt64(final FieldHandle field, final long value)
+    {
+        write_tag(field, ITM_TYPE_UINT64);
+        write_raw_varint64(value);
+    }
+
+    public void writeSInt32(final FieldHandle field, final int value)
+    {
+        write_tag(field, ITM_TYPE_SINT32);
+        write_raw_varint32((value << 1) ^ (value >> 31));
+    }
+
+    public void writeSInt64(final FieldHandle field, final long value)
+    {
+        write_tag(field, ITM_TYPE_SINT64);
+        write_raw_varint64((value << 1) ^ (value >> 63));
+    }
+
+    public void writeFixed32(final FieldHandle field, final int value)
+    {
+        write_tag(field, ITM_TYPE_FIXED32);
+        write_raw_littleendian32(value);
+    }
+
+    public void writeFixed64(final FieldHandle field, final long value)
+    {
+        write_tag(field, ITM_TYPE_FIXED64);
+        write_raw_littleendian64(value);
+    }
+
+    public void writeDouble(final FieldHandle field, final double value)
+    {
+        write_tag(field, ITM_TYPE_DOUBLE);
+        write_raw_littleendian64(Double.doubleToRawLongBits(value));
+    }
+
+    public void writeSingle(final FieldHandle field, final float value)
+    {
+        write_tag(field, ITM_TYPE_SINGLE);
+        write_raw_littleendian32(Float.floatToRawIntBits(value));
+    }
+
+    public void writeBool(final FieldHandle field, final boolean value)
+    {
+        write_tag(field, ITM_TYPE_BOOLEAN);
+        write_rawbyte(value ? 1 : 0);
+    }
+
+    public void writeBytes(final FieldHandle field, final byte[] value)
+    {
+        if (value == null) return;
+        writeBytes(field, value, 0, value.length);
+    }
+
+    public void writeBytes(final FieldHandle field, final byte[] value, final int start, final int count)
+    {
+        if (value == null) return;
+        write_tag(field, ITM_TYPE_BYTES);
+        write_raw_varint32(count);
+        write_rawbytes(value, start, count);
+    }
+
+    public void writeUInt32Array(final FieldHandle field, final int[] values, final int start, final int count)
+    {
+        if (values == null) return;
+        if (field.item.type == ITM_TYPE_DELTA_UINT32_ARRAY)
+        {
+            write_tag(field, ITM_TYPE_DELTA_UINT32_ARRAY);
+            write_delta(null, values, start, count);
+            return;
+        }
+        write_tag(field, ITM_TYPE_UINT32_ARRAY);
+        write_packed32(values, start, count, false);
+    }
+
+    public void writeUInt64Array(final FieldHandle field, final long[] values, final int start, final int count)
+    {
+        if (values == null) return;
+        if (field.item.type == ITM_TYPE_DELTA_UINT64_ARRAY)
+        {
+            write_tag(field, ITM_TYPE_DELTA_UINT64_ARRAY);
+            write_delta(values, null, start, count);
+            return;
+        }
+        write_tag(field, ITM_TYPE_UINT64_ARRAY);
+        write_packed64(values, start, count, false);
+    }
+
+    public void writeSInt32Array(final FieldHandle field, final int[] values, final int start, final int count)
+    {
+        if (values == null) return;
+        if (field.item.type == ITM_TYPE_DELTA_SINT32_ARRAY)
+        {
+            write_tag(field, ITM_TYPE_DELTA_SINT32_ARRAY);
+            write_delta(null, values, start, count);
+            return;
+        }
+        write_tag(field, ITM_TYPE_SINT32_ARRAY);
+        write_packed32(values, start, count, true);
+    }
+
+    public void writeSInt64Array(final FieldHandle field, final long[] values, final int start, final int count)
+    {
+        if (values == null) return;
+        if (field.item.type == ITM_TYPE_DELTA_SINT64_ARRAY)
+        {
+            write_tag(field, ITM_TYPE_DELTA_SINT64_ARRAY);
+            write_delta(values, null, start, count);
+            return;
+        }
+        write_tag(field, ITM_TYPE_SINT64_ARRAY);
+        write_packed64(values, start, count, true);
+    }
+
+    public void writeSingleArray(final FieldHandle field, final float[] values, final int start, final int count)
+    {
+        if (values == null) return;
+        write_tag(field, ITM_TYPE_SINGLE_ARRAY);
+        write_packedsingle(values, start, count);
+    }
+
+    public void writeDoubleArray(final FieldHandle field, final double[] values, final int start, final int count)
+    {
+        if (values == null) return;
+        write_tag(field, ITM_TYPE_DOUBLE_ARRAY);
+        write_packeddouble(values, start, count);
+    }
+
+    public void writeEnum(final FieldHandle field, final String enumValue)
+    {
+        if (enumValue == null) return;
+        final Grp isa = field.item.isa;
+        if (isa == null || field.item.type != ITM_TYPE_ENUM)
+        {
+            throw new RuntimeException("itemtypemismatch");
+        }
+        Itm enm = ensureItem(true, isa, enumValue, ITM_TYPE_STRING, isa);
+        write_tag(field, ITM_TYPE_ENUM);
+        write_raw_varint32(enm.id);
+    }
+
     public void writeStart(final String itemName)
     {
         writeStart(itemName, itemName);
@@ -200,15 +855,56 @@ public class SequentialStructuredDataStream {
 
     public void writeStart(final String itemName, final String isaName)
     {
-        stack.push(ensureItem(true, peekIsa(true), itemName, ITM_TYPE_STRUCT, isaName, ITM_TYPE_STRUCT));
-        write_raw_varint32((stack.peek().id << TAG_TYPE_BITS) | RAW_TYPE_START_GROUP);
+        Itm item = ensureItem(true, peekIsa(true), itemName, ITM_TYPE_STRUCT, isaName, ITM_TYPE_STRUCT);
+        if (sizedGroups)
+        {
+            write_start(item);
+            return;
+        }
+        stack_push(item, -1);
+        write_raw_varint32((item.id << TAG_TYPE_BITS) | RAW_TYPE_START_GROUP);
+    }
+
+    /*
+     * starts a sized group, its content stays in the buffer until writeEnd() puts
+     * the byte length in front of it.
+     */
+    private void write_start(final Itm item)
+    {
+        if (depth == 0)
+        {
+            if (writeBuffer.length - writePosition < 5)
+            {
+                write_room(5);
+            }
+            sizedOrigin = writePosition;
+        }
+        write_raw_varint32((item.id << TAG_TYPE_BITS) | RAW_TYPE_SIZED_START_GROUP);
+        stack_push(item, writePosition);
     }
 
     public void writeString(final String itemName, final String value)
     {
         if (value == null) return;
 
-        Itm item = ensureItem(true, peekIsa(true), itemName, ITM_TYPE_STRING, null);
+        // once only, at the top level peekIsa(true) counts a record for the index
+        final Grp parent = peekIsa(true);
+        if (dict_applies(parent, itemName))
+        {
+            final Itm dict = ensureItem(true, parent, itemName, ITM_TYPE_DICT_STRING, DICT_GROUP_PREFIX + itemName, ITM_TYPE_ENUM);
+            final Itm entry = dict_entry(dict, value);
+            if (entry != null)
+            {
+                write_raw_varint32((dict.id << TAG_TYPE_BITS) | RAW_TYPE_VARINT);
+                write_raw_varint32(entry.id);
+                return;
+            }
+            write_raw_varint32((dict.id << TAG_TYPE_BITS) | RAW_TYPE_LENGTH_DELIMITED);
+            write_rawstring(value) ;
+            return;
+        }
+
+        Itm item = ensureItem(true, parent, itemName, ITM_TYPE_STRING, null);
 
         write_raw_varint32((item.id << TAG_TYPE_BITS) | RAW_TYPE_LENGTH_DELIMITED);
         
@@ -262,7 +958,7 @@ public class SequentialStructuredDataStream {
 
     public void writeFixed64(final String itemName, final long value)
     {
-        Itm item = ensureItem(true, peekIsa(true), itemName, ITM_TYPE_UINT64, null);
+        Itm item = ensureItem(true, peekIsa(true), itemName, ITM_TYPE_FIXED64, null);
 
         write_raw_varint32((item.id << TAG_TYPE_BITS) | RAW_TYPE_FIXED64);
         write_raw_littleendian64(value);
@@ -304,427 +1000,3516 @@ public class SequentialStructuredDataStream {
     {
         if (value == null) return;
 
-        Itm item = ensureItem(true, peekIsa(true), itemName, ITM_TYPE_BOOLEAN, null);
+        Itm item = ensureItem(true, peekIsa(true), itemName, ITM_TYPE_BYTES, null);
 
         write_raw_varint32((item.id << TAG_TYPE_BITS) | RAW_TYPE_LENGTH_DELIMITED);
         write_raw_varint32(count);
         write_rawbytes(value, start, count);
     }
 
-    public void writeEnum(final String itemName, final String enumValue)
+    /*
+     * arrays of numbers are written as one item, the values packed back to back
+     * without tags in a length delimited record.
+     */
+    public void writeUInt32Array(final String itemName, final int[] values, final int start, final int count)
     {
-        writeEnum(itemName, itemName, enumValue);
-    }
+        if (values == null) return;
 
-    public void writeEnum(final String itemName, final String isaName, final String enumValue)
-    {
-        if (enumValue == null) return;
-        if (version == null) ensureGroup(true, CURRENT_VERSION, ITM_TYPE_STRUCT);
-        Itm enm = ensureItem(true, isaName, ITM_TYPE_ENUM, enumValue, ITM_TYPE_STRING, isaName, ITM_TYPE_ENUM);
-        Itm item = ensureItem(true, peekIsa(true), itemName, ITM_TYPE_ENUM, enm.isa);
+        if (delta_applies(itemName))
+        {
+            Itm item = ensureItem(true, peekIsa(true), itemName, ITM_TYPE_DELTA_UINT32_ARRAY, null);
 
-        write_raw_varint32((item.id << TAG_TYPE_BITS) | RAW_TYPE_VARINT);
-        write_raw_varint32(enm.id);
-    }
+            write_raw_varint32((item.id << TAG_TYPE_BITS) | RAW_TYPE_LENGTH_DELIMITED);
+            write_delta(null, values, start, count);
+            return;
+        }
 
-    public void writeEnd()
-    {
-        Itm item = stack.pop();
-        write_raw_varint32((item.id << TAG_TYPE_BITS) | RAW_TYPE_END_GROUP);
-    }
+        Itm item = ensureItem(true, peekIsa(true), itemName, ITM_TYPE_UINT32_ARRAY, null);
 
+        write_raw_varint32((item.id << TAG_TYPE_BITS) | RAW_TYPE_LENGTH_DELIMITED);
+        write_packed32(values, start, count, false);
+    }
 
-    private void write_raw_varint32(int value)
+    public void writeUInt64Array(final String itemName, final long[] values, final int start, final int count)
     {
-        while (true)
+        if (values == null) return;
+
+        if (delta_applies(itemName))
         {
-            if ((value & ~0x7F) == 0)
-            {
-                write_rawbyte(value);
-                return;
-            }
-            else
-            {
-                write_rawbyte((value & 0x7F) | 0x80);
-                value >>>= 7;
-            }
+            Itm item = ensureItem(true, peekIsa(true), itemName, ITM_TYPE_DELTA_UINT64_ARRAY, null);
+
+            write_raw_varint32((item.id << TAG_TYPE_BITS) | RAW_TYPE_LENGTH_DELIMITED);
+            write_delta(values, null, start, count);
+            return;
         }
-    }
 
-    private void write_raw_littleendian64(final long value)
-    {
-        write_rawbyte((int)(value) & 0xFF);
-        write_rawbyte((int)(value >> 8) & 0xFF);
-        write_rawbyte((int)(value >> 16) & 0xFF);
-        write_rawbyte((int)(value >> 24) & 0xFF);
-        write_rawbyte((int)(value >> 32) & 0xFF);
-        write_rawbyte((int)(value >> 40) & 0xFF);
-        write_rawbyte((int)(value >> 48) & 0xFF);
-        write_rawbyte((int)(value >> 56) & 0xFF);
-    }
+        Itm item = ensureItem(true, peekIsa(true), itemName, ITM_TYPE_UINT64_ARRAY, null);
 
+        write_raw_varint32((item.id << TAG_TYPE_BITS) | RAW_TYPE_LENGTH_DELIMITED);
+        write_packed64(values, start, count, false);
+    }
 
-    private void write_raw_varint64(long value)
+    public void writeSInt32Array(final String itemName, final int[] values, final int start, final int count)
     {
-        while (true)
+        if (values == null) return;
+
+        if (delta_applies(itemName))
         {
-            if ((value & ~0x7FL) == 0)
-            {
-                write_rawbyte((int)value);
-                return;
-            }
-            else
-            {
-                write_rawbyte(((int)value & 0x7F) | 0x80);
-                value >>>= 7;
-            }
+            Itm item = ensureItem(true, peekIsa(true), itemName, ITM_TYPE_DELTA_SINT32_ARRAY, null);
+
+            write_raw_varint32((item.id << TAG_TYPE_BITS) | RAW_TYPE_LENGTH_DELIMITED);
+            write_delta(null, values, start, count);
+            return;
         }
-    }
 
+        Itm item = ensureItem(true, peekIsa(true), itemName, ITM_TYPE_SINT32_ARRAY, null);
 
-    private void write_raw_littleendian32(final int value)
-    {
-        write_rawbyte((value) & 0xFF);
-        write_rawbyte((value >> 8) & 0xFF);
-        write_rawbyte((value >> 16) & 0xFF);
-        write_rawbyte((value >> 24) & 0xFF);
+        write_raw_varint32((item.id << TAG_TYPE_BITS) | RAW_TYPE_LENGTH_DELIMITED);
+        write_packed32(values, start, count, true);
     }
 
-    private void write_rawbyte(final int value)
+    public void writeSInt64Array(final String itemName, final long[] values, final int start, final int count)
     {
-        if (outputStream != null)
+        if (values == null) return;
+
+        if (delta_applies(itemName))
         {
-        	try {
-				outputStream.write((byte)value);
-			} catch (IOException e) {
-				throw new RuntimeException ("cannot write") ;
-			}
+            Itm item = ensureItem(true, peekIsa(true), itemName, ITM_TYPE_DELTA_SINT64_ARRAY, null);
+
+            write_raw_varint32((item.id << TAG_TYPE_BITS) | RAW_TYPE_LENGTH_DELIMITED);
+            write_delta(values, null, start, count);
+            return;
         }
+
+        Itm item = ensureItem(true, peekIsa(true), itemName, ITM_TYPE_SINT64_ARRAY, null);
+
+        write_raw_varint32((item.id << TAG_TYPE_BITS) | RAW_TYPE_LENGTH_DELIMITED);
+        write_packed64(values, start, count, true);
     }
 
-    private void write_rawbytes(final byte[] value, final int offset, final int length)
+    public void writeSingleArray(final String itemName, final float[] values, final int start, final int count)
     {
-        if (outputStream != null)
-        {
-        	try {
-				outputStream.write(value, offset, length);
-			} catch (IOException e) {
-				throw new RuntimeException ("cannot write") ;
-			}
-        }
-    }
-    
-    private void write_rawstring (final String value) {
-    	try {
-	        byte[] bytes = value.getBytes("utf-8");
-	        write_raw_varint32(bytes.length);
-	        write_rawbytes(bytes, 0, bytes.length);
-    	} catch (Exception e) {
-    		throw new RuntimeException ("utf-8 not supported") ;
-    	}
+        if (values == null) return;
+
+        Itm item = ensureItem(true, peekIsa(true), itemName, ITM_TYPE_SINGLE_ARRAY, null);
+
+        write_raw_varint32((item.id << TAG_TYPE_BITS) | RAW_TYPE_LENGTH_DELIMITED);
+        write_packedsingle(values, start, count);
     }
 
-    private class Fld
+    public void writeDoubleArray(final String itemName, final double[] values, final int start, final int count)
     {
-        public boolean is_start;
-        public boolean is_end;
-        public String name;
-        public int index;
-        public int level;
-        public String type_name;
-        public String isa_name;
-        public Object value;
+        if (values == null) return;
 
-        public Fld()
-        {
-            this.clear();
-        }
+        Itm item = ensureItem(true, peekIsa(true), itemName, ITM_TYPE_DOUBLE_ARRAY, null);
 
-        public void clear()
-        {
-            this.is_start = false;
-            this.is_end = false;
-            this.name = "";
-            this.index = 0;
-            this.level = 0;
-            this.type_name = "";
-            this.isa_name = "";
-            this.value = null;
-        }
+        write_raw_varint32((item.id << TAG_TYPE_BITS) | RAW_TYPE_LENGTH_DELIMITED);
+        write_packeddouble(values, start, count);
     }
 
-    private Fld scannedField = null;
-    
- 
-    public boolean readItem()
+    public void writeEnum(final String itemName, final String enumValue)
     {
-        int wireTag;
-        int wireType;
-        int wireFieldNumber;
-        Grp group = null;
-        Itm item = null;
+        writeEnum(itemName, itemName, enumValue);
+    }
 
-        if (scannedField == null)
+    public void writeEnum(final String itemName, final String isaName, final String enumValue)
+    {
+        if (enumValue == null) return;
+        if (version == null) ensureGroup(true, writeVersion(), ITM_TYPE_STRUCT);
+        Itm enm = ensureItem(true, isaName, ITM_TYPE_ENUM, enumValue, ITM_TYPE_STRING, isaName, ITM_TYPE_ENUM);
+        Itm item = ensureItem(true, peekIsa(true), itemName, ITM_TYPE_ENUM, enm.isa);
+
+        write_raw_varint32((item.id << TAG_TYPE_BITS) | RAW_TYPE_VARINT);
+        write_raw_varint32(enm.id);
+    }
+
+    /*
+     * copies the rest of the stream of reader, or of the structure it is in, into this
+     * writer without decoding values: tags are renumbered to the writer's schema,
+     * merged by group and item names, enum values are renumbered likewise, string
+     * dictionary references too as far as the writer's setStringDictionary() limits
+     * allow, the others become literals, and every other value is copied as its
+     * wire bytes.
+     * items keep their types, an item of the same name and another type fails with
+     * itemtypemismatch unless the two only differ in dictionary or delta coding, and
+     * as with writeStart() an item keeps the structure type it was first written
+     * with. structures are sized or not as this writer writes them. the reader is
+     * left on the end item of its structure, or at the end of the stream.
+     */
+    public void append(final SequentialStructuredDataStream reader)
+    {
+        if (reader.push || reader.projection != null)
         {
-            scannedField = new Fld();
+            throw new RuntimeException("append needs a pull reader without projection");
         }
-
-        do
+        for (int i = 0; i < reader.groupCount; i++)
         {
-            scannedField.clear();
-
-            if (this.eos)
+            final Grp g = reader.indexedGroups[i];
+            for (int k = 1; k <= g.count; k++)
             {
-                return false;
+                g.indexedItems[k].copy = null;
             }
-
-            wireTag = read_rawvarint32();
+        }
+        if (reader.scannedField == null)
+        {
+            reader.scannedField = new Fld();
+        }
+        reader.scannedField.clear();
+        final int base = reader.depth;
+        while (!reader.eos)
+        {
+            final int wireTag = reader.read_rawvarint32();
             if (wireTag == 0)
             {
-                return false;
+                break;
             }
-            wireType = wireTag & TAG_TYPE_MASK;
-            wireFieldNumber = wireTag >>> TAG_TYPE_BITS;
-
-            item = null;
-
+            final int wireType = wireTag & TAG_TYPE_MASK;
+            final int wireFieldNumber = wireTag >>> TAG_TYPE_BITS;
+            if (wireType == RAW_TYPE_SCHEMA)
+            {
+                reader.read_schema(wireFieldNumber);
+                continue;
+            }
+            if (wireType == RAW_TYPE_END_GROUP)
+            {
+                final Itm item = reader.stack_pop();
+                if (reader.depth < base)
+                {
+                    reader.scan_end(item);
+                    return;
+                }
+                writeEnd();
+                continue;
+            }
+            final Itm from = reader.peekIsa(false).get(wireFieldNumber);
+            final Itm item = append_item(from);
             switch (wireType)
             {
-                case RAW_TYPE_END_GROUP:
-                    {
-                        item = stack.pop();
-                        scannedField.name = item.name;
-                        scannedField.level = stack.size();
-                        scannedField.index = item.id;
-                        scannedField.isa_name = item.isa.name;
-                        scannedField.type_name = "end_group";
-                        scannedField.is_end = true;
-                    }
-                    break;
-                case RAW_TYPE_FIXED32:
+                case RAW_TYPE_START_GROUP:
+                case RAW_TYPE_SIZED_START_GROUP:
                     {
-                        item = peekIsa(false).indexedItems.get(wireFieldNumber);
-                        scannedField.name = item.name;
-                        scannedField.level = stack.size();
-                        scannedField.index = item.id;
-                        switch (item.type)
+                        final int length = wireType == RAW_TYPE_SIZED_START_GROUP ? reader.read_rawvarint32() : -1;
+                        reader.stack_push(from, length >= 0 ? reader.read_offset() + length : -1);
+                        if (sizedGroups)
+                        {
+                            write_start(item);
+                        }
+                        else
                         {
-                            case ITM_TYPE_FIXED32:
-                                scannedField.type_name = "fixed32";
-                                scannedField.value = read_rawlittleendian32();
-                                break;
-                            case ITM_TYPE_SINGLE:
-                                scannedField.type_name = "single";
-                                scannedField.value = Float.intBitsToFloat(read_rawlittleendian32());
-                                break;
-                            default:
-                                throw new RuntimeException("bad type for fixed32");
+                            stack_push(item, -1);
+                            write_raw_varint32((item.id << TAG_TYPE_BITS) | RAW_TYPE_START_GROUP);
                         }
                     }
                     break;
-                case RAW_TYPE_FIXED64:
+                case RAW_TYPE_VARINT:
+                    if (item.type != from.type)
                     {
-                        item = peekIsa(false).indexedItems.get(wireFieldNumber);
-                        scannedField.name = item.name;
-                        scannedField.level = stack.size();
-                        scannedField.index = item.id;
-                        switch (item.type)
+                        // a dictionary reference to an item the writer has as a plain string
+                        write_raw_varint32((item.id << TAG_TYPE_BITS) | RAW_TYPE_LENGTH_DELIMITED);
+                        write_rawstring(from.isa.get(reader.read_rawvarint32()).name);
+                        break;
+                    }
+                    if (from.type == ITM_TYPE_ENUM)
+                    {
+                        // enum values are items of their group, numbered per stream
+                        final Itm value = from.isa.get(reader.read_rawvarint32());
+                        if (value.copy == null)
                         {
-                            case ITM_TYPE_FIXED64:
-                                scannedField.type_name = "fixed64";
-                                scannedField.value = read_rawlittleendian64();
-                                break;
-                            case ITM_TYPE_DOUBLE:
-                                scannedField.type_name = "double";
-                                scannedField.value = Double.longBitsToDouble(read_rawlittleendian64());
-                                break;
-                            default:
-                                throw new RuntimeException("bad type for fixed64");
+                            value.copy = ensureItem(false, item.isa, value.name, value.type, item.isa);
                         }
+                        append_emit(value.copy);
+                        write_raw_varint32((item.id << TAG_TYPE_BITS) | RAW_TYPE_VARINT);
+                        write_raw_varint32(value.copy.id);
                     }
-                    break;
-                case RAW_TYPE_LENGTH_DELIMITED:
+                    else if (from.type == ITM_TYPE_DICT_STRING)
                     {
-                        item = peekIsa(false).indexedItems.get(wireFieldNumber);
-                        scannedField.name = item.name;
-                        scannedField.level = stack.size();
-                        scannedField.index = item.id;
-                        switch (item.type)
+                        // dictionary entries take the writer's limits, what does not fit goes out as a literal
+                        final Itm value = from.isa.get(reader.read_rawvarint32());
+                        if (value.copy == null)
                         {
-                            case ITM_TYPE_STRING:
-                            {
-                                scannedField.type_name = "string";
-                                scannedField.value = read_rawstring() ;
-                            }
-                                break;
-                            case ITM_TYPE_BYTES:
-                            {
-                                scannedField.type_name = "bytes";
-                                int size = read_rawvarint32();
-                                byte[] bytes = read_rawbytes(size);
-                                scannedField.value = bytes;
-                            }
-                                break;
-                            default:
-                                throw new RuntimeException("bad type for length delimited");
+                            value.copy = dict_entry(item, value.name);
+                        }
+                        else
+                        {
+                            item.hits++;
+                        }
+                        if (value.copy == null)
+                        {
+                            write_raw_varint32((item.id << TAG_TYPE_BITS) | RAW_TYPE_LENGTH_DELIMITED);
+                            write_rawstring(value.name);
+                            break;
                         }
+                        append_emit(value.copy);
+                        write_raw_varint32((item.id << TAG_TYPE_BITS) | RAW_TYPE_VARINT);
+                        write_raw_varint32(value.copy.id);
+                    }
+                    else
+                    {
+                        write_raw_varint32((item.id << TAG_TYPE_BITS) | RAW_TYPE_VARINT);
+                        write_raw_varint64(reader.read_rawvarint64());
                     }
                     break;
-                case RAW_TYPE_SCHEMA:
-                    switch (wireFieldNumber)
+                case RAW_TYPE_FIXED32:
+                    write_raw_varint32((item.id << TAG_TYPE_BITS) | RAW_TYPE_FIXED32);
+                    write_raw_littleendian32(reader.read_rawlittleendian32());
+                    break;
+                case RAW_TYPE_FIXED64:
+                    write_raw_varint32((item.id << TAG_TYPE_BITS) | RAW_TYPE_FIXED64);
+                    write_raw_littleendian64(reader.read_rawlittleendian64());
+                    break;
+                case RAW_TYPE_LENGTH_DELIMITED:
                     {
-                        case 1:
-                            {
-                                group = new Grp();
-                                group.type = (byte)read_rawbyte();
-                                group.name = read_rawstring() ;
-                                namedGroups.put(group.name, group);
-                                if (version == null)
-                                {
-                                    version = group;
-                                }
-                            }
+                        write_raw_varint32((item.id << TAG_TYPE_BITS) | RAW_TYPE_LENGTH_DELIMITED);
+                        if (item.type != from.type && type_code(from.type) != TYPE_STRING)
+                        {
+                            append_array(reader, from, item);
                             break;
-                        case 2:
+                        }
+                        // strings are literals whether or not the item has a dictionary
+                        int length = reader.read_rawvarint32();
+                        write_raw_varint32(length);
+                        while (length > 0)
+                        {
+                            if (!reader.readBuffer.hasRemaining() && !reader.read_refill(1))
                             {
-                                item = new Itm();
-                                item.type = (byte)read_rawbyte();
-                                item.name = read_rawstring() ;
-                                group = namedGroups.get(read_rawstring()) ;
-                                item.id = ++group.count;
-                                group.namedItems.put(item.name, item);
-                                group.indexedItems.put(item.id, item);
+                                throw new RuntimeException("not enough bytes");
                             }
-                            break;
-                        case 3:
+                            final int n = Math.min(length, Math.min(reader.readBuffer.remaining(), writeBuffer.length));
+                            if (writeBuffer.length - writePosition < n)
                             {
-                                item = new Itm();
-                                item.type = (byte)read_rawbyte();
-                                item.name = read_rawstring() ;
-                                group = namedGroups.get(read_rawstring()) ;
-                                item.id = ++group.count;
-                                item.isa = namedGroups.get(read_rawstring());
-                                group.namedItems.put(item.name, item);
-                                group.indexedItems.put(item.id, item);
+                                write_room(n);
                             }
-                            break;
-                        default:
-                            throw new RuntimeException("bad field number for reserved");
-
-                    }
-                    break;
-                case RAW_TYPE_START_GROUP:
-                    {
-                        item = peekIsa(false).indexedItems.get(wireFieldNumber);
-                        scannedField.name = item.name;
-                        scannedField.index = item.id;
-                        scannedField.level = stack.size();
-                        scannedField.type_name = "start_group";
-                        scannedField.is_start = true;
-                        stack.push(item);
-                    }
-                    break;
-                case RAW_TYPE_VARINT:
-                    {
-                        item = peekIsa(false).indexedItems.get(wireFieldNumber);
-                        scannedField.name = item.name;
-                        scannedField.level = stack.size();
-                        scannedField.index = item.id;
-                        switch (item.type)
-                        {
-                            case ITM_TYPE_BOOLEAN:
-                                scannedField.type_name = "boolean";
-                                scannedField.value = read_rawvarint32() != 0;
-                                break;
-                            case ITM_TYPE_ENUM:
-                                scannedField.type_name = "enum";
-                                scannedField.isa_name = item.isa.name;
-                                scannedField.value = item.isa.indexedItems.get(read_rawvarint32()).name;
-                                break;
-                            case ITM_TYPE_UINT32:
-                                scannedField.type_name = "uint32";
-                                scannedField.value = read_rawvarint32();
-                                break;
-                            case ITM_TYPE_UINT64:
-                                scannedField.type_name = "uint64";
-                                scannedField.value = read_rawvarint64();
-                                break;
-                            case ITM_TYPE_SINT32:
-                                scannedField.type_name = "sint32";
-                                {
-                                	int n = read_rawvarint32();
-                                	scannedField.value = (n >>> 1) ^ -(n & 1);
-                                }
-                                break;
-                            case ITM_TYPE_SINT64:
-                                scannedField.type_name = "sint64";
-                                {
-                                	long n = read_rawvarint64();
-                                	scannedField.value = (n >>> 1) ^ -(n & 1);
-                                }
-                                break;
-                            default:
-                                throw new RuntimeException("bad type for readVarint");
+                            reader.readBuffer.get(writeBuffer, writePosition, n);
+                            writePosition += n;
+                            length -= n;
                         }
                     }
                     break;
                 default:
                     throw new RuntimeException("invalidwiretype");
             }
-        } while (wireType == RAW_TYPE_SCHEMA);
+        }
+        reader.eos = true;
+    }
 
-        return true;
+    /*
+     * the item of this writer that the item of a reader is copied to, in the innermost
+     * open structure, with its schema records emitted.
+     */
+    private Itm append_item(final Itm from)
+    {
+        final Grp parent = peekIsa(true);
+        Itm item = from.copy;
+        if (item == null || item.parent != parent)
+        {
+            item = parent.namedItems.get(from.name);
+            if (item == null || type_code(item.type) != type_code(from.type) || item.type == from.type)
+            {
+                final Grp isa = from.isa == null ? null : ensureGroup(false, from.isa.name, from.isa.type);
+                item = ensureItem(false, parent, from.name, from.type, isa);
+            }
+            // otherwise the same values coded another way, dictionary or delta, converted while copying
+            from.copy = item;
+        }
+        append_emit(item);
+        return item;
     }
 
-    public boolean isStartItem()
+    /*
+     * copies an integer array whose item the writer has with the other of plain and
+     * delta coding, decoding and coding it again.
+     */
+    private void append_array(final SequentialStructuredDataStream reader, final Itm from, final Itm item)
     {
-        if (scannedField == null) throw new RuntimeException("no item read");
-        return scannedField.is_start;
+        final Fld field = reader.scannedField;
+        field.item = from;
+        field.type = type_code(from.type);
+        reader.read_value();
+        final int count = reader.itemArrayLength();
+        final boolean delta = item.type >= ITM_TYPE_DELTA_UINT32_ARRAY && item.type <= ITM_TYPE_DELTA_SINT64_ARRAY;
+        final boolean zigzag = field.type == TYPE_SINT32_ARRAY || field.type == TYPE_SINT64_ARRAY;
+        if (field.type == TYPE_UINT32_ARRAY || field.type == TYPE_SINT32_ARRAY)
+        {
+            final int[] values = new int[count];
+            read_packed(field, null, values, 0);
+            if (delta)
+            {
+                write_delta(null, values, 0, count);
+            }
+            else
+            {
+                write_packed32(values, 0, count, zigzag);
+            }
+        }
+        else
+        {
+            final long[] values = new long[count];
+            read_packed(field, values, null, 0);
+            if (delta)
+            {
+                write_delta(values, null, 0, count);
+            }
+            else
+            {
+                write_packed64(values, 0, count, zigzag);
+            }
+        }
+        field.clear();
     }
 
-    public boolean isEndItem()
+    private void append_emit(final Itm item)
     {
-        if (scannedField == null) throw new RuntimeException("no item read");
-        return scannedField.is_end;
+        if (item.id > item.parent.emittedCount)
+        {
+            final int mark = writePosition - sizedOrigin;
+            emitItem(item);
+            write_hoist(mark);
+        }
+    }
+
+    /*
+     * writes a record or @SsdsRecord object as a structure named after its type, see
+     * writeObject(itemName, value).
+     */
+    public void writeObject(final Object value)
+    {
+        if (value == null) return;
+        writeObject(SsdsRecordCodec.forClass(value.getClass()).typeName, value);
+    }
+
+    /*
+     * writes a record or @SsdsRecord object as a structure of its type, one item per
+     * component. the components are resolved to field handles the first time a type
+     * is written, null components are left out.
+     */
+    public void writeObject(final String itemName, final Object value)
+    {
+        if (value == null) return;
+        final SsdsRecordCodec<?> codec = SsdsRecordCodec.forClass(value.getClass());
+        writeStart(itemName, codec.typeName);
+        final Grp g = stack[depth - 1].isa;
+        if (g.codec != codec)
+        {
+            g.handles = new FieldHandle[codec.size()];
+            for (int i = 0; i < codec.size(); i++)
+            {
+                if (codec.kind(i) != TYPE_START_GROUP)
+                {
+                    g.handles[i] = new FieldHandle(g, codec.name(i), codec.kind(i));
+                }
+            }
+            g.codec = codec;
+        }
+        codec.write(this, g.handles, value);
+        writeEnd();
+    }
+
+    public void writeEnd()
+    {
+        if (depth == 0)
+        {
+            throw new RuntimeException("no structure to end");
+        }
+        final Itm item = stack[depth - 1];
+        write_raw_varint32((item.id << TAG_TYPE_BITS) | RAW_TYPE_END_GROUP);
+        if (sizedGroups)
+        {
+            final int length = writePosition - (int)stackMarks[depth - 1];
+            int size = 1;
+            while ((length >>> (7 * size)) != 0)
+            {
+                size++;
+            }
+            if (writeBuffer.length - writePosition < size)
+            {
+                write_room(size);
+            }
+            int position = (int)stackMarks[depth - 1];
+            System.arraycopy(writeBuffer, position, writeBuffer, position + size, length);
+            writePosition += size;
+            int value = length;
+            while ((value & ~0x7F) != 0)
+            {
+                writeBuffer[position++] = (byte)((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            writeBuffer[position] = (byte)value;
+        }
+        stack_pop();
+    }
+
+    /*
+     * the groups and items declared so far as schema records, version group first. the
+     * bytes can be stored and given to preloadSchema() of later writers and readers.
+     */
+    public byte[] exportSchema()
+    {
+        if (version == null)
+        {
+            ensureGroup(false, writeVersion(), ITM_TYPE_STRUCT);
+        }
+        final String[] names = namedGroups.keySet().toArray(new String[0]);
+        Arrays.sort(names);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final SequentialStructuredDataStream w = createWriter(bytes);
+        w.schema_export(version);
+        for (String name : names)
+        {
+            if (namedGroups.get(name) != version)
+            {
+                w.schema_export(namedGroups.get(name));
+            }
+        }
+        for (String name : names)
+        {
+            final Grp g = namedGroups.get(name);
+            for (int i = 1; i <= g.count; i++)
+            {
+                final Itm item = g.indexedItems[i];
+                w.write_raw_varint32(((item.isa == null ? 2 : 3) << TAG_TYPE_BITS) | RAW_TYPE_SCHEMA);
+                w.write_rawbyte(item.type);
+                w.write_rawstring(item.name);
+                w.write_rawstring(g.name);
+                if (item.isa != null)
+                {
+                    w.write_rawstring(item.isa.name);
+                }
+            }
+        }
+        w.close();
+        return bytes.toByteArray();
+    }
+
+    private void schema_export(final Grp g)
+    {
+        write_raw_varint32((1 << TAG_TYPE_BITS) | RAW_TYPE_SCHEMA);
+        write_rawbyte(g.type);
+        write_rawstring(g.name);
+    }
+
+    /*
+     * starts from a schema exported by exportSchema(), must be called before anything
+     * is written or read. a writer then emits schema records only for what is not in
+     * the dictionary and marks the stream with the dictionary's hash, a reader checks
+     * that mark against its own dictionary.
+     */
+    public void preloadSchema(final byte[] schema)
+    {
+        if (version != null)
+        {
+            throw new RuntimeException("stream already started");
+        }
+        schema_load(schema);
+        final CRC32C crc = new CRC32C();
+        crc.update(schema, 0, schema.length);
+        dictionary = schema;
+        dictionaryHash = (int)crc.getValue();
+        for (Grp g : namedGroups.values())
+        {
+            g.preloadedCount = g.count;
+        }
+        if (outputStream != null || asyncExecutor != null)
+        {
+            if (version == null || !version.name.equals(writeVersion()))
+            {
+                throw new RuntimeException("dictionary version mismatch");
+            }
+            for (Grp g : namedGroups.values())
+            {
+                g.emitted = true;
+                g.emittedCount = g.count;
+            }
+            write_raw_varint32((4 << TAG_TYPE_BITS) | RAW_TYPE_SCHEMA);
+            write_raw_littleendian32(dictionaryHash);
+        }
+    }
+
+    private void schema_load(final byte[] schema)
+    {
+        final SequentialStructuredDataStream r = new SequentialStructuredDataStream(null, null, null, 16);
+        r.readBuffer = ByteBuffer.wrap(schema);
+        r.readBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (r.readItem() || r.readBuffer.hasRemaining())
+        {
+            throw new RuntimeException("not a schema dictionary");
+        }
+        for (int i = 0; i < r.groupCount; i++)
+        {
+            group_put(r.indexedGroups[i]);
+        }
+        version = r.version;
+    }
+
+    /*
+     * ssds1 streams put the byte length of every structure in front of it so that
+     * readers can skip it in one step. the structures are then held in the buffer
+     * until they end, and schema records used inside them are moved in front of
+     * the outermost one, so a skipped structure never hides schema. must be set
+     * before anything is written or declared.
+     */
+    public void setSizedGroups(final boolean sized)
+    {
+        if (version != null)
+        {
+            throw new RuntimeException("stream already started");
+        }
+        sizedGroups = sized;
+    }
+
+    /*
+     * writes the string items named in itemNames as references into a dictionary of
+     * up to maxEntries values per item name. the dictionary is an enum group named
+     * after the item behind DICT_GROUP_PREFIX, apart from the stream's own structure
+     * and enum types, so each distinct value costs one schema record the first time
+     * and a varint afterwards, and readers get the same String instance back for
+     * every reference. values that do not fit go out as plain strings. with no
+     * itemNames every string item is tried, and an item stops adding values once its
+     * dictionary has 64 of them and fewer lookups than that have been hits. must be
+     * set before anything is written or declared.
+     */
+    public void setStringDictionary(final int maxEntries, final String... itemNames)
+    {
+        if (version != null)
+        {
+            throw new RuntimeException("stream already started");
+        }
+        if (maxEntries < 0)
+        {
+            throw new RuntimeException("bad dictionary size");
+        }
+        stringDictionary = maxEntries;
+        stringDictionaryItems = itemNames.length == 0 ? null : new HashSet<String>(Arrays.asList(itemNames));
+    }
+
+    /*
+     * writes the integer arrays named in itemNames, or all of them when none are
+     * named, as the differences between neighbouring values, packed in blocks of 128
+     * with as many bits each as the spread of the block's differences needs. steady
+     * series such as timestamps and sequence numbers then take a few bits a value.
+     * readers get the values back through the same accessors as plain arrays. must
+     * be set before anything is written or declared.
+     */
+    public void setDeltaEncoding(final String... itemNames)
+    {
+        if (version != null)
+        {
+            throw new RuntimeException("stream already started");
+        }
+        deltaArrays = true;
+        deltaArrayItems = itemNames.length == 0 ? null : new HashSet<String>(Arrays.asList(itemNames));
+    }
+
+    private boolean delta_applies(final String itemName)
+    {
+        return deltaArrays && (deltaArrayItems == null || deltaArrayItems.contains(itemName));
+    }
+
+    /*
+     * an item already declared in parent as something else than a dictionary string,
+     * e.g. by a preloaded schema, stays as it is.
+     */
+    private boolean dict_applies(final Grp parent, final String itemName)
+    {
+        if (stringDictionary <= 0 || (stringDictionaryItems != null && !stringDictionaryItems.contains(itemName)))
+        {
+            return false;
+        }
+        final Itm known = parent.namedItems.get(itemName);
+        return known == null || known.type == ITM_TYPE_DICT_STRING;
+    }
+
+    /*
+     * the dictionary entry for value, declared when the item's dictionary still takes
+     * new values, or null when value has to be written as a literal.
+     */
+    private Itm dict_entry(final Itm item, final String value)
+    {
+        final Grp dict = item.isa;
+        if (dict.namedItems.get(value) != null)
+        {
+            item.hits++;
+        }
+        else if (dict.count >= stringDictionary || (stringDictionaryItems == null && dict.count >= 64 && item.hits < dict.count))
+        {
+            return null;
+        }
+        return ensureItem(true, dict, value, ITM_TYPE_STRING, dict);
+    }
+
+    private String writeVersion()
+    {
+        return sizedGroups ? SIZED_VERSION : CURRENT_VERSION;
+    }
+
+    /*
+     * moves schema records written from mark on in front of the open sized groups,
+     * mark is taken relative to sizedOrigin as writing the records may flush.
+     */
+    private void write_hoist(final int mark)
+    {
+        if (!sizedGroups || depth == 0)
+        {
+            return;
+        }
+        final int start = sizedOrigin + mark;
+        final int length = writePosition - start;
+        if (length == 0)
+        {
+            return;
+        }
+        final byte[] schema = Arrays.copyOfRange(writeBuffer, start, writePosition);
+        System.arraycopy(writeBuffer, sizedOrigin, writeBuffer, sizedOrigin + length, mark);
+        System.arraycopy(schema, 0, writeBuffer, sizedOrigin, length);
+        sizedOrigin += length;
+        for (int i = 0; i < depth; i++)
+        {
+            stackMarks[i] += length;
+        }
+    }
+
+
+    /*
+     * schema records and checkpoints of a sparse index, as kept by a reader.
+     */
+    private class Sch
+    {
+        public byte type;
+        public String name;
+        public String parent;
+        public String isa;
+    }
+
+    private class Idx
+    {
+        public Sch[] schema = new Sch[64];
+        public int schemaCount = 0;
+        public long[] records = new long[64];
+        public long[] offsets = new long[64];
+        public int[] schemas = new int[64];
+        public int count = 0;
+    }
+
+    /*
+     * writes a sparse index of this stream to indexStream, which is itself an ssds
+     * stream: every schema record in the order it is emitted, and a checkpoint with
+     * the byte offset of every interval-th top level item and the number of schema
+     * records before it. readers given the index can seekToRecord() from the nearest
+     * checkpoint without reading what comes before. must be set before anything is
+     * written or declared, the index is closed with the stream.
+     */
+    public void setIndex(final OutputStream indexStream, final int interval)
+    {
+        if (version != null)
+        {
+            throw new RuntimeException("stream already started");
+        }
+        if (interval < 1)
+        {
+            throw new RuntimeException("bad index interval");
+        }
+        indexWriter = createWriter(indexStream);
+        indexInterval = interval;
+    }
+
+    private void index_checkpoint()
+    {
+        if (indexRecords++ % indexInterval != 0)
+        {
+            return;
+        }
+        indexWriter.writeStart("checkpoint");
+        indexWriter.writeUInt64("record", indexRecords - 1);
+        indexWriter.writeUInt64("offset", writeOffset + writePosition);
+        indexWriter.writeUInt32("schema", indexSchema);
+        indexWriter.writeEnd();
+    }
+
+    private void index_schema(final String kind, final byte type, final String name, final String parent, final String isa)
+    {
+        indexSchema++;
+        indexWriter.writeStart(kind);
+        indexWriter.writeUInt32("type", type);
+        indexWriter.writeString("name", name);
+        indexWriter.writeString("parent", parent);
+        indexWriter.writeString("isa", isa);
+        indexWriter.writeEnd();
+    }
+
+    /*
+     * loads an index written with setIndex(indexStream, interval) for seekToRecord().
+     */
+    public void setIndex(final InputStream indexStream)
+    {
+        final SequentialStructuredDataStream r = createReader(indexStream);
+        final Idx idx = new Idx();
+        while (r.readItem())
+        {
+            if (!r.isStartItem())
+            {
+                continue;
+            }
+            final boolean checkpoint = r.itemName().equals("checkpoint");
+            final Sch sch = new Sch();
+            long record = 0;
+            long offset = 0;
+            int schema = 0;
+            while (r.readItem() && !r.isEndItem())
+            {
+                final String name = r.itemName();
+                if (name.equals("type")) sch.type = (byte)r.itemInt();
+                else if (name.equals("name")) sch.name = (String)r.itemValue();
+                else if (name.equals("parent")) sch.parent = (String)r.itemValue();
+                else if (name.equals("isa")) sch.isa = (String)r.itemValue();
+                else if (name.equals("record")) record = r.itemLong();
+                else if (name.equals("offset")) offset = r.itemLong();
+                else if (name.equals("schema")) schema = r.itemInt();
+            }
+            if (checkpoint)
+            {
+                if (idx.count == idx.records.length)
+                {
+                    idx.records = Arrays.copyOf(idx.records, idx.count * 2);
+                    idx.offsets = Arrays.copyOf(idx.offsets, idx.count * 2);
+                    idx.schemas = Arrays.copyOf(idx.schemas, idx.count * 2);
+                }
+                idx.records[idx.count] = record;
+                idx.offsets[idx.count] = offset;
+                idx.schemas[idx.count++] = schema;
+            }
+            else
+            {
+                if (idx.schemaCount == idx.schema.length)
+                {
+                    idx.schema = Arrays.copyOf(idx.schema, idx.schemaCount * 2);
+                }
+                idx.schema[idx.schemaCount++] = sch;
+            }
+        }
+        index = idx;
+    }
+
+    /*
+     * positions the reader so that the next readItem() returns top level item number
+     * record, counted from 0. the schema known at the nearest checkpoint at or before
+     * it is rebuilt from the index, the stream is then read from that checkpoint.
+     * stream readers can only move forward, file readers anywhere. returns false when
+     * the stream ends before the record.
+     */
+    public boolean seekToRecord(final long record)
+    {
+        if (index == null)
+        {
+            throw new RuntimeException("no index");
+        }
+        int k = Arrays.binarySearch(index.records, 0, index.count, record);
+        if (k < 0)
+        {
+            k = -k - 2;
+        }
+        if (k < 0)
+        {
+            throw new RuntimeException("record not in index");
+        }
+        final long offset = readOrigin + index.offsets[k];
+        if (fileChannel != null)
+        {
+            windowPosition = offset;
+            readBuffer = ByteBuffer.allocate(0);
+        }
+        else if (offset >= read_offset())
+        {
+            read_skipbytes(offset - read_offset());
+        }
+        else
+        {
+            throw new RuntimeException("cannot seek back in a stream");
+        }
+        while (depth > 0)
+        {
+            stack_pop();
+        }
+        groups_clear();
+        version = null;
+        scannedField = null;
+        eos = false;
+        if (dictionary != null)
+        {
+            schema_load(dictionary);
+        }
+        for (int i = 0; i < index.schemas[k]; i++)
+        {
+            final Sch sch = index.schema[i];
+            if (sch.parent == null)
+            {
+                schema_group(sch.type, sch.name);
+            }
+            else
+            {
+                schema_item(sch.type, sch.name, sch.parent, sch.isa);
+            }
+        }
+        final Prj saved = projection;
+        projection = null;
+        try {
+            for (long n = index.records[k]; n < record; n++)
+            {
+                if (!skipValue())
+                {
+                    return false;
+                }
+            }
+        } finally {
+            projection = saved;
+        }
+        return true;
+    }
+
+    /*
+     * the top level items of an indexed file as a stream that can go parallel(), the
+     * file is split at index checkpoints and every split decodes its range with its own
+     * reader. decoder is called with that reader positioned on the first item of each
+     * top level item, whatever of a structure it leaves unread is skipped afterwards.
+     * a split closes its reader when it runs out, readers left open by a short-circuiting
+     * operation or an exception are closed by the stream's close(), so use it in a
+     * try-with-resources block.
+     */
+    public static <T> Stream<T> stream(final Path path, final InputStream indexStream, final Function<SequentialStructuredDataStream, T> decoder)
+    {
+        final SequentialStructuredDataStream first = createReader(path);
+        first.setIndex(indexStream);
+        if (first.index.count == 0)
+        {
+            first.close();
+            throw new RuntimeException("empty index");
+        }
+        final Queue<SequentialStructuredDataStream> readers = new ConcurrentLinkedQueue<SequentialStructuredDataStream>();
+        final AtomicBoolean closed = new AtomicBoolean();
+        readers.add(first);
+        return StreamSupport.stream(new Split<T>(path, first.index, readers, closed, first, decoder, 0, first.index.count), false)
+            .onClose(() -> {
+                closed.set(true);
+                for (SequentialStructuredDataStream reader; (reader = readers.poll()) != null; )
+                {
+                    reader.close();
+                }
+            });
+    }
+
+    /*
+     * the top level items from checkpoint lo up to checkpoint hi, the last split runs
+     * to the end of the file. splits are halved until they are being read.
+     */
+    private static class Split<T> implements Spliterator<T>
+    {
+        private final Path path;
+        private final Idx index;
+        private final Queue<SequentialStructuredDataStream> readers;  // open readers of all splits, for the stream's close()
+        private final AtomicBoolean closed;   // the stream was closed, e.g. while parallel splits still run after a failure
+        private final Function<SequentialStructuredDataStream, T> decoder;
+        private SequentialStructuredDataStream reader;
+        private int lo;
+        private final int hi;
+        private long record;
+
+        Split(final Path path, final Idx index, final Queue<SequentialStructuredDataStream> readers, final AtomicBoolean closed, final SequentialStructuredDataStream reader, final Function<SequentialStructuredDataStream, T> decoder, final int lo, final int hi)
+        {
+            this.path = path;
+            this.index = index;
+            this.readers = readers;
+            this.closed = closed;
+            this.decoder = decoder;
+            this.reader = reader;
+            this.lo = lo;
+            this.hi = hi;
+            this.record = -1;
+        }
+
+        public boolean tryAdvance(final Consumer<? super T> action)
+        {
+            if (record < 0)
+            {
+                if (reader == null)
+                {
+                    reader = createReader(path);
+                    reader.index = index;
+                    readers.add(reader);
+                }
+                if (closed.get())
+                {
+                    close();
+                    return false;
+                }
+                record = index.records[lo];
+                reader.seekToRecord(record);
+            }
+            if (reader == null || closed.get() || (hi < index.count && record >= index.records[hi]) || !reader.readItem())
+            {
+                close();
+                return false;
+            }
+            final T value = decoder.apply(reader);
+            while (reader.depth > 0)
+            {
+                reader.skipCurrentStructure();
+            }
+            record++;
+            action.accept(value);
+            return true;
+        }
+
+        public Spliterator<T> trySplit()
+        {
+            if (record >= 0 || hi - lo < 2)
+            {
+                return null;
+            }
+            final int mid = (lo + hi) >>> 1;
+            final Split<T> prefix = new Split<T>(path, index, readers, closed, reader, decoder, lo, mid);
+            reader = null;
+            lo = mid;
+            return prefix;
+        }
+
+        public long estimateSize()
+        {
+            final long from = record >= 0 ? record : index.records[lo];
+            if (hi < index.count)
+            {
+                return index.records[hi] - from;
+            }
+            // the last range runs to the end of the file, assume it is as dense as the rest
+            return index.count > 1 ? (index.records[index.count - 1] - index.records[0]) / (index.count - 1) : Long.MAX_VALUE;
+        }
+
+        public int characteristics()
+        {
+            return ORDERED;
+        }
+
+        private void close()
+        {
+            if (reader != null && readers.remove(reader))
+            {
+                reader.close();
+            }
+            reader = null;
+        }
+    }
+
+    public void flush()
+    {
+        write_flushbuffer();
+        if (asyncExecutor != null)
+        {
+            write_await();
+        }
+        if (outputStream != null)
+        {
+            try {
+                outputStream.flush();
+            } catch (IOException e) {
+                throw new RuntimeException ("cannot write", e) ;
+            }
+        }
+        if (indexWriter != null)
+        {
+            indexWriter.flush();
+        }
+    }
+
+    public void close()
+    {
+        try {
+            if (outputStream != null)
+            {
+                flush();
+                outputStream.close();
+            }
+            if (inputStream != null)
+            {
+                inputStream.close();
+            }
+            if (fileChannel != null)
+            {
+                fileChannel.close();
+            }
+            if (asyncExecutor != null)
+            {
+                try {
+                    flush();
+                } finally {
+                    asyncExecutor.shutdown();
+                    if (asyncChannel != null)
+                    {
+                        asyncChannel.close();
+                    }
+                    if (asyncFile != null)
+                    {
+                        asyncFile.close();
+                    }
+                }
+            }
+            if (indexWriter != null)
+            {
+                indexWriter.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException ("cannot close", e) ;
+        }
+    }
+
+    /*
+     * writes out the buffer, except open sized groups which have to stay buffered.
+     */
+    private void write_flushbuffer()
+    {
+        final int end = sizedGroups && depth > 0 ? sizedOrigin : writePosition;
+        if (end == 0)
+        {
+            return;
+        }
+        byte[] rest = writeBuffer;
+        if (outputStream != null)
+        {
+            try {
+                outputStream.write(writeBuffer, 0, end);
+            } catch (IOException e) {
+                throw new RuntimeException ("cannot write", e) ;
+            }
+        }
+        else if (asyncExecutor != null)
+        {
+            rest = write_async(end);
+        }
+        writeOffset += end;
+        if (end < writePosition)
+        {
+            System.arraycopy(writeBuffer, end, rest, 0, writePosition - end);
+            for (int i = 0; i < depth; i++)
+            {
+                stackMarks[i] -= end;
+            }
+            sizedOrigin = 0;
+        }
+        writeBuffer = rest;
+        writePosition -= end;
+    }
+
+    /*
+     * hands writeBuffer[0, end) to the background thread once the previous buffer is
+     * written and returns the buffer to continue in.
+     */
+    private byte[] write_async(final int end)
+    {
+        write_await();
+        final byte[] full = writeBuffer;
+        final byte[] next = asyncSpare != null && asyncSpare.length >= full.length ? asyncSpare : new byte[full.length];
+        asyncSpare = full;
+        asyncPending = asyncExecutor.submit(() -> {
+            write_drain(full, end);
+            return null;
+        });
+        return next;
+    }
+
+    private void write_drain(final byte[] bytes, final int length) throws IOException
+    {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+        while (buffer.hasRemaining())
+        {
+            if (asyncChannel != null)
+            {
+                asyncChannel.write(buffer);
+                continue;
+            }
+            try {
+                asyncPosition += asyncFile.write(buffer, asyncPosition).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause());
+            }
+        }
+    }
+
+    /*
+     * waits for the buffer being written in the background, rethrowing its failure.
+     * the stream is broken after the first failure, so it is kept and thrown again
+     * by every later write, flush and close.
+     */
+    private void write_await()
+    {
+        if (asyncFailure != null)
+        {
+            throw asyncFailure;
+        }
+        if (asyncPending == null)
+        {
+            return;
+        }
+        final Future<?> pending = asyncPending;
+        asyncPending = null;
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            asyncFailure = new RuntimeException ("cannot write", e) ;
+            throw asyncFailure;
+        } catch (ExecutionException e) {
+            asyncFailure = new RuntimeException ("cannot write", e.getCause()) ;
+            throw asyncFailure;
+        }
+    }
+
+    /*
+     * makes room for needed bytes, growing the buffer when flushing is not enough.
+     */
+    private void write_room(final int needed)
+    {
+        write_flushbuffer();
+        if (writeBuffer.length - writePosition < needed)
+        {
+            writeBuffer = Arrays.copyOf(writeBuffer, Math.max(writeBuffer.length * 2, writePosition + needed));
+        }
+    }
+
+    private void stack_push(final Itm item, final long mark)
+    {
+        if (depth == stack.length)
+        {
+            stack = Arrays.copyOf(stack, depth * 2);
+            stackMarks = Arrays.copyOf(stackMarks, depth * 2);
+        }
+        stackMarks[depth] = mark;
+        stack[depth++] = item;
+    }
+
+    private Itm stack_pop()
+    {
+        if (depth == 0)
+        {
+            throw new RuntimeException("no structure to end");
+        }
+        final Itm item = stack[--depth];
+        stack[depth] = null;
+        return item;
+    }
+
+    private void write_raw_varint32(int value)
+    {
+        if (writeBuffer.length - writePosition < 5)
+        {
+            write_room(5);
+        }
+        final byte[] buffer = writeBuffer;
+        int position = writePosition;
+        while ((value & ~0x7F) != 0)
+        {
+            buffer[position++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte)value;
+        writePosition = position;
+    }
+
+    private void write_raw_littleendian64(final long value)
+    {
+        if (writeBuffer.length - writePosition < 8)
+        {
+            write_room(8);
+        }
+        final byte[] buffer = writeBuffer;
+        final int position = writePosition;
+        buffer[position] = (byte)(value);
+        buffer[position + 1] = (byte)(value >> 8);
+        buffer[position + 2] = (byte)(value >> 16);
+        buffer[position + 3] = (byte)(value >> 24);
+        buffer[position + 4] = (byte)(value >> 32);
+        buffer[position + 5] = (byte)(value >> 40);
+        buffer[position + 6] = (byte)(value >> 48);
+        buffer[position + 7] = (byte)(value >> 56);
+        writePosition = position + 8;
+    }
+
+
+    private void write_raw_varint64(long value)
+    {
+        if (writeBuffer.length - writePosition < 10)
+        {
+            write_room(10);
+        }
+        final byte[] buffer = writeBuffer;
+        int position = writePosition;
+        while ((value & ~0x7FL) != 0)
+        {
+            buffer[position++] = (byte)(((int)value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte)value;
+        writePosition = position;
+    }
+
+
+    private void write_raw_littleendian32(final int value)
+    {
+        if (writeBuffer.length - writePosition < 4)
+        {
+            write_room(4);
+        }
+        final byte[] buffer = writeBuffer;
+        final int position = writePosition;
+        buffer[position] = (byte)(value);
+        buffer[position + 1] = (byte)(value >> 8);
+        buffer[position + 2] = (byte)(value >> 16);
+        buffer[position + 3] = (byte)(value >> 24);
+        writePosition = position + 4;
+    }
+
+    private void write_rawbyte(final int value)
+    {
+        if (writePosition == writeBuffer.length)
+        {
+            write_room(1);
+        }
+        writeBuffer[writePosition++] = (byte)value;
+    }
+
+    private void write_rawbytes(final byte[] value, final int offset, final int length)
+    {
+        if (writeBuffer.length - writePosition < length)
+        {
+            write_flushbuffer();
+            if (writePosition == 0 && length > writeBuffer.length && asyncExecutor == null)
+            {
+                // larger than the whole buffer, hand it to the stream as is
+                if (outputStream != null)
+                {
+                    try {
+                        outputStream.write(value, offset, length);
+                    } catch (IOException e) {
+                        throw new RuntimeException ("cannot write", e) ;
+                    }
+                }
+                writeOffset += length;
+                return;
+            }
+            write_room(length);
+        }
+        System.arraycopy(value, offset, writeBuffer, writePosition, length);
+        writePosition += length;
+    }
+
+    private void write_packed32(final int[] values, final int start, final int count, final boolean zigzag)
+    {
+        final int end = start + count;
+        int length = 0;
+        for (int i = start; i < end; i++)
+        {
+            final int value = zigzag ? (values[i] << 1) ^ (values[i] >> 31) : values[i];
+            length += (38 - Integer.numberOfLeadingZeros(value | 1)) / 7;
+        }
+        write_raw_varint32(length);
+        byte[] buffer = writeBuffer;
+        int position = writePosition;
+        for (int i = start; i < end; i++)
+        {
+            if (buffer.length - position < 5)
+            {
+                writePosition = position;
+                write_room(5);
+                buffer = writeBuffer;
+                position = writePosition;
+            }
+            int value = zigzag ? (values[i] << 1) ^ (values[i] >> 31) : values[i];
+            while ((value & ~0x7F) != 0)
+            {
+                buffer[position++] = (byte)((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte)value;
+        }
+        writePosition = position;
+    }
+
+    private void write_packed64(final long[] values, final int start, final int count, final boolean zigzag)
+    {
+        final int end = start + count;
+        int length = 0;
+        for (int i = start; i < end; i++)
+        {
+            final long value = zigzag ? (values[i] << 1) ^ (values[i] >> 63) : values[i];
+            length += (70 - Long.numberOfLeadingZeros(value | 1)) / 7;
+        }
+        write_raw_varint32(length);
+        byte[] buffer = writeBuffer;
+        int position = writePosition;
+        for (int i = start; i < end; i++)
+        {
+            if (buffer.length - position < 10)
+            {
+                writePosition = position;
+                write_room(10);
+                buffer = writeBuffer;
+                position = writePosition;
+            }
+            long value = zigzag ? (values[i] << 1) ^ (values[i] >> 63) : values[i];
+            while ((value & ~0x7FL) != 0)
+            {
+                buffer[position++] = (byte)(((int)value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte)value;
+        }
+        writePosition = position;
+    }
+
+    /*
+     * a delta array is its count, the first value and then the differences between
+     * neighbours in blocks of DELTA_BLOCK. a block is its smallest difference, the
+     * bit width of the largest one above that and the differences above it packed
+     * little endian in that many bits. values are widened to long, so 32 bit arrays
+     * are coded the same way.
+     */
+    private void write_delta(final long[] longs, final int[] ints, final int start, final int count)
+    {
+        int length = varint64_length(count);
+        if (count > 0)
+        {
+            length += varint64_length(zigzag(delta_value(longs, ints, start)));
+        }
+        for (int b = 1; b < count; b += DELTA_BLOCK)
+        {
+            final int end = Math.min(b + DELTA_BLOCK, count);
+            final long min = delta_min(longs, ints, start, b, end);
+            final int width = delta_width(longs, ints, start, b, end, min);
+            length += varint64_length(zigzag(min)) + 1 + ((end - b) * width + 7) / 8;
+        }
+        write_raw_varint32(length);
+        write_raw_varint32(count);
+        if (count == 0)
+        {
+            return;
+        }
+        write_raw_varint64(zigzag(delta_value(longs, ints, start)));
+        for (int b = 1; b < count; b += DELTA_BLOCK)
+        {
+            final int end = Math.min(b + DELTA_BLOCK, count);
+            final long min = delta_min(longs, ints, start, b, end);
+            final int width = delta_width(longs, ints, start, b, end, min);
+            write_raw_varint64(zigzag(min));
+            write_rawbyte(width);
+            if (writeBuffer.length - writePosition < DELTA_BLOCK * 8)
+            {
+                write_room(DELTA_BLOCK * 8);
+            }
+            final byte[] buffer = writeBuffer;
+            int position = writePosition;
+            long bits = 0;
+            int pending = 0;
+            for (int i = b; i < end; i++)
+            {
+                long value = delta_value(longs, ints, start + i) - delta_value(longs, ints, start + i - 1) - min;
+                int remaining = width;
+                while (remaining > 0)
+                {
+                    // at most 32 bits at a time so that pending bits never overflow
+                    final int take = Math.min(remaining, 32);
+                    bits |= (value & ((1L << take) - 1)) << pending;
+                    pending += take;
+                    value >>>= take;
+                    remaining -= take;
+                    while (pending >= 8)
+                    {
+                        buffer[position++] = (byte)bits;
+                        bits >>>= 8;
+                        pending -= 8;
+                    }
+                }
+            }
+            if (pending > 0)
+            {
+                buffer[position++] = (byte)bits;
+            }
+            writePosition = position;
+        }
+    }
+
+    private static long delta_value(final long[] longs, final int[] ints, final int i)
+    {
+        return longs != null ? longs[i] : ints[i];
+    }
+
+    private static long delta_min(final long[] longs, final int[] ints, final int start, final int b, final int end)
+    {
+        long min = Long.MAX_VALUE;
+        for (int i = b; i < end; i++)
+        {
+            min = Math.min(min, delta_value(longs, ints, start + i) - delta_value(longs, ints, start + i - 1));
+        }
+        return min;
+    }
+
+    private static int delta_width(final long[] longs, final int[] ints, final int start, final int b, final int end, final long min)
+    {
+        long spread = 0;
+        for (int i = b; i < end; i++)
+        {
+            spread |= delta_value(longs, ints, start + i) - delta_value(longs, ints, start + i - 1) - min;
+        }
+        return 64 - Long.numberOfLeadingZeros(spread);
+    }
+
+    private static long zigzag(final long value)
+    {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static int varint64_length(final long value)
+    {
+        return (70 - Long.numberOfLeadingZeros(value | 1)) / 7;
+    }
+
+    private void write_packedsingle(final float[] values, final int start, final int count)
+    {
+        write_raw_varint32(count * 4);
+        for (int i = start; i < start + count; i++)
+        {
+            write_raw_littleendian32(Float.floatToRawIntBits(values[i]));
+        }
+    }
+
+    private void write_packeddouble(final double[] values, final int start, final int count)
+    {
+        write_raw_varint32(count * 8);
+        for (int i = start; i < start + count; i++)
+        {
+            write_raw_littleendian64(Double.doubleToRawLongBits(values[i]));
+        }
+    }
+
+    private void write_rawstring (final String value) {
+        final int length = utf8_length(value);
+        write_raw_varint32(length);
+        if (length > writeBuffer.length)
+        {
+            byte[] bytes = value.getBytes(UTF8);
+            write_rawbytes(bytes, 0, bytes.length);
+            return;
+        }
+        if (writeBuffer.length - writePosition < length)
+        {
+            write_room(length);
+        }
+        writePosition = utf8_encode(value, writeBuffer, writePosition);
+    }
+
+    // number of bytes String.getBytes("utf-8") would produce, unpaired surrogates become '?'
+    private static int utf8_length(final String value)
+    {
+        final int count = value.length();
+        int length = count;
+        for (int i = 0; i < count; i++)
+        {
+            char c = value.charAt(i);
+            if (c < 0x80)
+            {
+                continue;
+            }
+            if (c < 0x800)
+            {
+                length += 1;
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(value.charAt(i + 1)))
+            {
+                length += 2;
+                i++;
+            }
+            else if (Character.isSurrogate(c))
+            {
+                // encoded as '?'
+            }
+            else
+            {
+                length += 2;
+            }
+        }
+        return length;
+    }
+
+    private static int utf8_encode(final String value, final byte[] buffer, int position)
+    {
+        final int count = value.length();
+        for (int i = 0; i < count; i++)
+        {
+            char c = value.charAt(i);
+            if (c < 0x80)
+            {
+                buffer[position++] = (byte)c;
+            }
+            else if (c < 0x800)
+            {
+                buffer[position++] = (byte)(0xC0 | (c >> 6));
+                buffer[position++] = (byte)(0x80 | (c & 0x3F));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(value.charAt(i + 1)))
+            {
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                buffer[position++] = (byte)(0xF0 | (cp >> 18));
+                buffer[position++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+                buffer[position++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+                buffer[position++] = (byte)(0x80 | (cp & 0x3F));
+            }
+            else if (Character.isSurrogate(c))
+            {
+                buffer[position++] = (byte)'?';
+            }
+            else
+            {
+                buffer[position++] = (byte)(0xE0 | (c >> 12));
+                buffer[position++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+                buffer[position++] = (byte)(0x80 | (c & 0x3F));
+            }
+        }
+        return position;
+    }
+
+    private class Fld
+    {
+        public boolean is_start;
+        public boolean is_end;
+        public String name;
+        public int index;
+        public int level;
+        public int type;
+        public String isa_name;
+        public Itm item;
+        public long long_value;
+        public double double_value;
+        public Object value;
+        public ByteBuffer value_buffer;
+        public int value_offset;
+        public int value_length;
+
+        public Fld()
+        {
+            this.clear();
+        }
+
+        public void clear()
+        {
+            this.is_start = false;
+            this.is_end = false;
+            this.name = "";
+            this.index = 0;
+            this.level = 0;
+            this.type = TYPE_NONE;
+            this.isa_name = "";
+            this.item = null;
+            this.long_value = 0;
+            this.double_value = 0;
+            this.value = null;
+            this.value_buffer = null;
+        }
+    }
+
+    private Fld scannedField = null;
+
+    /*
+     * thrown when a push reader runs out of bytes in the middle of an item, read_item
+     * then rewinds to the start of the item.
+     */
+    private static class Underflow extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        Underflow()
+        {
+            super("need more input", null, false, false);
+        }
+    }
+
+    private static final Underflow UNDERFLOW = new Underflow();
+
+    /*
+     * appends bytes received by a push reader. the value of the current item is only
+     * valid until the next feed().
+     */
+    public void feed(final ByteBuffer data)
+    {
+        if (!push)
+        {
+            throw new RuntimeException("not a push reader");
+        }
+        final int length = data.remaining();
+        if (readBuffer.capacity() - readBuffer.limit() < length)
+        {
+            windowPosition += readBuffer.position();
+            if (readBuffer.capacity() - readBuffer.remaining() < length)
+            {
+                final ByteBuffer buffer = ByteBuffer.allocate(Math.max(readBuffer.capacity() * 2, readBuffer.remaining() + length));
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                buffer.put(readBuffer);
+                readBuffer = buffer;
+            }
+            else
+            {
+                readBuffer.compact();
+            }
+            readBuffer.flip();
+        }
+        final int position = readBuffer.position();
+        readBuffer.position(readBuffer.limit());
+        readBuffer.limit(readBuffer.limit() + length);
+        readBuffer.put(data);
+        readBuffer.position(position);
+    }
+
+    /*
+     * true when the last readItem() of a push reader returned false because the next
+     * item has not completely arrived.
+     */
+    public boolean needsInput()
+    {
+        return needsInput;
+    }
+    
+ 
+    public boolean readItem()
+    {
+        return read_item(true);
+    }
+
+    /*
+     * node of the projection tree, children by item name, any for a "*" segment and
+     * all when everything below is selected. resolved children are cached per item
+     * of the group last seen at this level so that a tag needs no string lookup.
+     */
+    private class Prj
+    {
+        public final HashMap<String, Prj> children = new HashMap<String, Prj>();
+        public Prj any = null;
+        public boolean all = false;
+        public HashMap<String, Prj> merged = null;
+        public Grp cacheGroup = null;
+        public Prj[] cache = null;
+    }
+
+    private final Prj NOT_SELECTED = new Prj();
+    private Prj projection = null;
+    private Prj[] projectionStack = null;
+
+    /*
+     * makes readItem() return only the items on the given paths, such as
+     * "order/lines/line/price" or "header/*", together with the start and end items
+     * of the structures leading to them. a path ending in a structure selects all of
+     * it and "*" matches any one name. everything else is skipped on the wire without
+     * being decoded. no paths turns the projection off.
+     */
+    public void setProjection(final String... paths)
+    {
+        if (depth != 0)
+        {
+            throw new RuntimeException("projection can only change between top level items");
+        }
+        if (paths == null || paths.length == 0)
+        {
+            projection = null;
+            return;
+        }
+        final Prj root = new Prj();
+        for (String path : paths)
+        {
+            Prj node = root;
+            for (String name : path.split("/"))
+            {
+                if (name.isEmpty())
+                {
+                    continue;
+                }
+                if (name.equals("*"))
+                {
+                    if (node.any == null)
+                    {
+                        node.any = new Prj();
+                    }
+                    node = node.any;
+                }
+                else
+                {
+                    Prj child = node.children.get(name);
+                    if (child == null)
+                    {
+                        child = new Prj();
+                        node.children.put(name, child);
+                    }
+                    node = child;
+                }
+            }
+            node.all = true;
+        }
+        projection = root;
+        projectionStack = new Prj[stack.length];
+        projectionStack[0] = root;
+    }
+
+    /*
+     * projection node for an item of the innermost open structure, NOT_SELECTED when
+     * the item is not on any path.
+     */
+    private Prj project(final Itm item)
+    {
+        final Prj node = projectionStack[depth];
+        if (node.all)
+        {
+            return node;
+        }
+        if (node.cacheGroup != item.parent)
+        {
+            node.cacheGroup = item.parent;
+            node.cache = new Prj[item.parent.count + 1];
+        }
+        else if (node.cache.length <= item.id)
+        {
+            node.cache = Arrays.copyOf(node.cache, item.parent.count + 1);
+        }
+        Prj child = node.cache[item.id];
+        if (child == null)
+        {
+            child = project_child(node, item.name);
+            node.cache[item.id] = child == null ? NOT_SELECTED : child;
+            return node.cache[item.id];
+        }
+        return child;
+    }
+
+    private Prj project_child(final Prj node, final String name)
+    {
+        final Prj named = node.children.get(name);
+        if (named == null || node.any == null)
+        {
+            return named != null ? named : node.any;
+        }
+        if (node.merged == null)
+        {
+            node.merged = new HashMap<String, Prj>();
+        }
+        Prj child = node.merged.get(name);
+        if (child == null)
+        {
+            child = project_merge(named, node.any);
+            node.merged.put(name, child);
+        }
+        return child;
+    }
+
+    private Prj project_merge(final Prj a, final Prj b)
+    {
+        if (a == null || b == null)
+        {
+            return a != null ? a : b;
+        }
+        final Prj m = new Prj();
+        m.all = a.all || b.all;
+        m.any = project_merge(a.any, b.any);
+        m.children.putAll(a.children);
+        for (Map.Entry<String, Prj> e : b.children.entrySet())
+        {
+            m.children.put(e.getKey(), project_merge(m.children.get(e.getKey()), e.getValue()));
+        }
+        return m;
+    }
+
+    /*
+     * enters a start item that is being skipped by a push reader.
+     */
+    private void read_skipstart(final int wireType, final int wireFieldNumber)
+    {
+        final Itm item = peekIsa(false).get(wireFieldNumber);
+        if (wireType == RAW_TYPE_SIZED_START_GROUP)
+        {
+            final int length = read_rawvarint32();
+            stack_push(item, read_offset() + length);
+        }
+        else
+        {
+            stack_push(item, -1);
+        }
+    }
+
+    private void read_skipitem(final int wireType)
+    {
+        switch (wireType)
+        {
+            case RAW_TYPE_START_GROUP:
+                read_skipgroup();
+                break;
+            case RAW_TYPE_SIZED_START_GROUP:
+                read_skipbytes(read_rawvarint32());
+                break;
+            default:
+                read_skipvalue(wireType);
+                break;
+        }
+    }
+
+    /*
+     * reads the next item without decoding its value, a start item has its whole
+     * structure skipped and leaves the matching end item as the current item.
+     * returns false at end of stream.
+     */
+    public boolean skipValue()
+    {
+        if (!read_item(false))
+        {
+            return false;
+        }
+        if (scannedField.is_start)
+        {
+            skipCurrentStructure();
+        }
+        return true;
+    }
+
+    /*
+     * skips the rest of the innermost open structure, which is the one just started
+     * when the current item is a start item, without decoding any value in it.
+     * schema records on the way are still applied and length delimited values are
+     * skipped over, structures of ssds1 streams are skipped in one step. the
+     * matching end item becomes the current item, except in a push reader which
+     * passes over the structure during the following readItem() calls.
+     */
+    public void skipCurrentStructure()
+    {
+        if (depth == 0)
+        {
+            throw new RuntimeException("no structure to skip");
+        }
+        if (scannedField == null)
+        {
+            scannedField = new Fld();
+        }
+        scannedField.clear();
+        if (push)
+        {
+            // the rest may not have arrived yet, the next readItem() calls pass over it
+            skipDepth = depth;
+            return;
+        }
+        if (stackMarks[depth - 1] >= 0)
+        {
+            // sized group, jump straight past its end
+            read_skipbytes(stackMarks[depth - 1] - read_offset());
+            scan_end(stack_pop());
+            return;
+        }
+        if (read_skipgroup())
+        {
+            scan_end(stack_pop());
+        }
+    }
+
+    /*
+     * reads the structure whose start item was just read into a new object of type,
+     * a record or @SsdsRecord class, and leaves the reader on its end item. items are
+     * matched to components by itemIndex() once their name has been looked up, items
+     * without a component are skipped and components without an item keep their
+     * default value.
+     */
+    public <T> T readObject(final Class<T> type)
+    {
+        if (scannedField == null || !scannedField.is_start) throw new RuntimeException("not a start item");
+        if (push)
+        {
+            throw new RuntimeException("readObject needs a pull reader");
+        }
+        final SsdsRecordCodec<T> codec = SsdsRecordCodec.forClass(type);
+        final Grp g = stack[depth - 1].isa;
+        if (g.codec != codec)
+        {
+            for (int i = 1; i <= g.count; i++)
+            {
+                g.indexedItems[i].slot = -2;
+            }
+            g.codec = codec;
+        }
+        final int level = scannedField.level;
+        final long[] primitives = new long[codec.size()];
+        final Object[] objects = new Object[codec.size()];
+        while (readItem())
+        {
+            final Fld field = scannedField;
+            if (field.level == level)
+            {
+                break;
+            }
+            final Itm item = field.item;
+            if (item.slot == -2)
+            {
+                item.slot = codec.slot(item.name);
+            }
+            final int slot = item.slot;
+            if (slot < 0 || (codec.kind(slot) == TYPE_START_GROUP) != field.is_start)
+            {
+                if (field.is_start)
+                {
+                    skipCurrentStructure();
+                }
+                continue;
+            }
+            switch (codec.kind(slot))
+            {
+                case TYPE_BOOLEAN:
+                    primitives[slot] = itemLong() != 0 ? 1 : 0;
+                    break;
+                case TYPE_SINT32:
+                case TYPE_SINT64:
+                    primitives[slot] = itemLong();
+                    break;
+                case TYPE_SINGLE:
+                case TYPE_DOUBLE:
+                    primitives[slot] = Double.doubleToRawLongBits(itemDouble());
+                    break;
+                case TYPE_STRING:
+                    if (field.type != TYPE_STRING) throw new RuntimeException("not a string item");
+                    objects[slot] = lazy_value(field);
+                    break;
+                case TYPE_ENUM:
+                    if (field.type != TYPE_ENUM && field.type != TYPE_STRING) throw new RuntimeException("not an enum item");
+                    objects[slot] = codec.constant(slot, (String)itemValue());
+                    break;
+                case TYPE_BYTES:
+                    if (field.type != TYPE_BYTES) throw new RuntimeException("not a bytes item");
+                    objects[slot] = lazy_value(field);
+                    break;
+                case TYPE_SINT32_ARRAY:
+                    {
+                        final int[] values = new int[itemArrayLength()];
+                        itemInts(values, 0);
+                        objects[slot] = values;
+                    }
+                    break;
+                case TYPE_SINT64_ARRAY:
+                    {
+                        final long[] values = new long[itemArrayLength()];
+                        itemLongs(values, 0);
+                        objects[slot] = values;
+                    }
+                    break;
+                case TYPE_SINGLE_ARRAY:
+                    {
+                        final float[] values = new float[itemArrayLength()];
+                        itemFloats(values, 0);
+                        objects[slot] = values;
+                    }
+                    break;
+                case TYPE_DOUBLE_ARRAY:
+                    {
+                        final double[] values = new double[itemArrayLength()];
+                        itemDoubles(values, 0);
+                        objects[slot] = values;
+                    }
+                    break;
+                default:
+                    objects[slot] = readObject(codec.type(slot));
+                    break;
+            }
+        }
+        return codec.create(primitives, objects);
+    }
+
+    /*
+     * consumes everything up to and including the end tag matching an already read
+     * start tag, returns false when the stream ends first.
+     */
+    private boolean read_skipgroup()
+    {
+        int nesting = 0;
+        while (!this.eos)
+        {
+            final int wireTag = read_rawvarint32();
+            if (wireTag == 0)
+            {
+                return false;
+            }
+            final int wireType = wireTag & TAG_TYPE_MASK;
+            switch (wireType)
+            {
+                case RAW_TYPE_START_GROUP:
+                    nesting++;
+                    break;
+                case RAW_TYPE_SIZED_START_GROUP:
+                    read_skipbytes(read_rawvarint32());
+                    break;
+                case RAW_TYPE_END_GROUP:
+                    if (nesting-- == 0)
+                    {
+                        return true;
+                    }
+                    break;
+                case RAW_TYPE_SCHEMA:
+                    read_schema(wireTag >>> TAG_TYPE_BITS);
+                    break;
+                default:
+                    read_skipvalue(wireType);
+                    break;
+            }
+        }
+        return false;
+    }
+
+    private void scan_end(final Itm item)
+    {
+        scannedField.name = item.name;
+        scannedField.item = item;
+        scannedField.level = depth;
+        scannedField.index = item.id;
+        scannedField.isa_name = item.isa.name;
+        scannedField.type = TYPE_END_GROUP;
+        scannedField.is_end = true;
+    }
+
+    private void read_skipvalue(final int wireType)
+    {
+        switch (wireType)
+        {
+            case RAW_TYPE_VARINT:
+                while (read_rawbyte() < 0 && !this.eos)
+                {
+                }
+                break;
+            case RAW_TYPE_FIXED32:
+                read_skipbytes(4);
+                break;
+            case RAW_TYPE_FIXED64:
+                read_skipbytes(8);
+                break;
+            case RAW_TYPE_LENGTH_DELIMITED:
+                read_skipbytes(read_rawvarint32());
+                break;
+            default:
+                throw new RuntimeException("invalidwiretype");
+        }
+    }
+
+    private void read_schema(final int wireFieldNumber)
+    {
+        switch (wireFieldNumber)
+        {
+            case 1:
+                {
+                    final byte type = (byte)read_rawbyte();
+                    schema_group(type, read_name());
+                }
+                break;
+            case 2:
+                {
+                    final byte type = (byte)read_rawbyte();
+                    final String name = read_name();
+                    schema_item(type, name, read_name(), null);
+                }
+                break;
+            case 3:
+                {
+                    final byte type = (byte)read_rawbyte();
+                    final String name = read_name();
+                    final String parent = read_name();
+                    schema_item(type, name, parent, read_name());
+                }
+                break;
+            case 4:
+                {
+                    final int hash = read_rawlittleendian32();
+                    if (dictionary == null)
+                    {
+                        throw new RuntimeException("schema dictionary required");
+                    }
+                    if (hash != dictionaryHash)
+                    {
+                        throw new RuntimeException("schema dictionary mismatch");
+                    }
+                }
+                break;
+            default:
+                throw new RuntimeException("bad field number for reserved");
+
+        }
+    }
+
+    private void schema_group(final byte type, final String name)
+    {
+        Grp group = namedGroups.get(name);
+        if (group != null && group.stale && group.type == type)
+        {
+            // kept by reset(), its items are matched again as they are declared
+            group.stale = false;
+            group.count = 0;
+        }
+        else
+        {
+            group = new Grp();
+            group.type = type;
+            group.name = name;
+            group_put(group);
+        }
+        if (version == null)
+        {
+            version = group;
+        }
+    }
+
+    private void schema_item(final byte type, final String name, final String parent, final String isa)
+    {
+        final Grp group = namedGroups.get(parent);
+        final Grp isaGroup = isa != null ? namedGroups.get(isa) : null;
+        final Itm kept = group.count + 1 < group.indexedItems.length ? group.indexedItems[group.count + 1] : null;
+        if (kept != null && kept.type == type && kept.isa == isaGroup && kept.name.equals(name))
+        {
+            group.count++;
+            return;
+        }
+        final Itm item = new Itm();
+        item.type = type;
+        item.name = name;
+        item.isa = isaGroup;
+        group.add(item);
+    }
+
+    private void group_put(final Grp g)
+    {
+        final Grp old = namedGroups.put(g.name, g);
+        if (old != null)
+        {
+            for (int i = 0; i < groupCount; i++)
+            {
+                if (indexedGroups[i] == old)
+                {
+                    indexedGroups[i] = g;
+                    return;
+                }
+            }
+        }
+        if (groupCount == indexedGroups.length)
+        {
+            indexedGroups = Arrays.copyOf(indexedGroups, groupCount * 2);
+        }
+        indexedGroups[groupCount++] = g;
+    }
+
+    private void groups_clear()
+    {
+        namedGroups.clear();
+        Arrays.fill(indexedGroups, 0, groupCount, null);
+        groupCount = 0;
+    }
+
+    private static int type_code(final byte itemType)
+    {
+        switch (itemType)
+        {
+            case ITM_TYPE_BOOLEAN: return TYPE_BOOLEAN;
+            case ITM_TYPE_ENUM: return TYPE_ENUM;
+            case ITM_TYPE_UINT32: return TYPE_UINT32;
+            case ITM_TYPE_UINT64: return TYPE_UINT64;
+            case ITM_TYPE_SINT32: return TYPE_SINT32;
+            case ITM_TYPE_SINT64: return TYPE_SINT64;
+            case ITM_TYPE_FIXED32: return TYPE_FIXED32;
+            case ITM_TYPE_FIXED64: return TYPE_FIXED64;
+            case ITM_TYPE_SINGLE: return TYPE_SINGLE;
+            case ITM_TYPE_DOUBLE: return TYPE_DOUBLE;
+            case ITM_TYPE_STRING: return TYPE_STRING;
+            case ITM_TYPE_DICT_STRING: return TYPE_STRING;
+            case ITM_TYPE_BYTES: return TYPE_BYTES;
+            case ITM_TYPE_UINT32_ARRAY: return TYPE_UINT32_ARRAY;
+            case ITM_TYPE_UINT64_ARRAY: return TYPE_UINT64_ARRAY;
+            case ITM_TYPE_SINT32_ARRAY: return TYPE_SINT32_ARRAY;
+            case ITM_TYPE_SINT64_ARRAY: return TYPE_SINT64_ARRAY;
+            case ITM_TYPE_SINGLE_ARRAY: return TYPE_SINGLE_ARRAY;
+            case ITM_TYPE_DOUBLE_ARRAY: return TYPE_DOUBLE_ARRAY;
+            case ITM_TYPE_DELTA_UINT32_ARRAY: return TYPE_UINT32_ARRAY;
+            case ITM_TYPE_DELTA_UINT64_ARRAY: return TYPE_UINT64_ARRAY;
+            case ITM_TYPE_DELTA_SINT32_ARRAY: return TYPE_SINT32_ARRAY;
+            case ITM_TYPE_DELTA_SINT64_ARRAY: return TYPE_SINT64_ARRAY;
+            case ITM_TYPE_STRUCT: return TYPE_START_GROUP;
+            default: return TYPE_NONE;
+        }
+    }
+
+    private boolean read_item(final boolean decode)
+    {
+        if (!push)
+        {
+            return read_next(decode);
+        }
+        try {
+            final boolean read = read_next(decode);
+            needsInput = false;
+            return read;
+        } catch (Underflow e) {
+            // the item is incomplete, everything done for it happened after its last read
+            readBuffer.position(pushMark);
+            scannedField.clear();
+            needsInput = true;
+            return false;
+        }
+    }
+
+    private boolean read_next(final boolean decode)
+    {
+        int wireTag;
+        int wireType;
+        int wireFieldNumber;
+        Itm item = null;
+        Prj selected = null;
+        boolean again;
+
+        if (scannedField == null)
+        {
+            scannedField = new Fld();
+        }
+
+        do
+        {
+            scannedField.clear();
+            pushMark = readBuffer.position();
+            again = false;
+
+            if (this.eos)
+            {
+                return false;
+            }
+
+            wireTag = read_rawvarint32();
+            if (wireTag == 0)
+            {
+                return false;
+            }
+            wireType = wireTag & TAG_TYPE_MASK;
+            wireFieldNumber = wireTag >>> TAG_TYPE_BITS;
+
+            item = null;
+            selected = null;
+
+            if (skipDepth > 0)
+            {
+                // inside a structure a push reader was asked to skip
+                again = true;
+                switch (wireType)
+                {
+                    case RAW_TYPE_END_GROUP:
+                        stack_pop();
+                        if (depth < skipDepth)
+                        {
+                            skipDepth = 0;
+                        }
+                        break;
+                    case RAW_TYPE_SCHEMA:
+                        read_schema(wireFieldNumber);
+                        break;
+                    case RAW_TYPE_START_GROUP:
+                    case RAW_TYPE_SIZED_START_GROUP:
+                        read_skipstart(wireType, wireFieldNumber);
+                        break;
+                    default:
+                        read_skipvalue(wireType);
+                        break;
+                }
+                continue;
+            }
+
+            if (projection != null && wireType != RAW_TYPE_SCHEMA && wireType != RAW_TYPE_END_GROUP)
+            {
+                selected = project(peekIsa(false).get(wireFieldNumber));
+                if (!selected.all && wireType != RAW_TYPE_START_GROUP && wireType != RAW_TYPE_SIZED_START_GROUP)
+                {
+                    selected = NOT_SELECTED;
+                }
+                if (selected == NOT_SELECTED)
+                {
+                    if (push && (wireType == RAW_TYPE_START_GROUP || wireType == RAW_TYPE_SIZED_START_GROUP))
+                    {
+                        read_skipstart(wireType, wireFieldNumber);
+                        skipDepth = depth;
+                    }
+                    else
+                    {
+                        read_skipitem(wireType);
+                    }
+                    again = true;
+                    continue;
+                }
+            }
+
+            if (!decode && wireType != RAW_TYPE_SCHEMA && wireType != RAW_TYPE_START_GROUP && wireType != RAW_TYPE_SIZED_START_GROUP && wireType != RAW_TYPE_END_GROUP)
+            {
+                item = peekIsa(false).get(wireFieldNumber);
+                scannedField.name = item.name;
+                scannedField.item = item;
+                scannedField.level = depth;
+                scannedField.index = item.id;
+                scannedField.type = type_code(item.type);
+                read_skipvalue(wireType);
+                return true;
+            }
+
+            switch (wireType)
+            {
+                case RAW_TYPE_END_GROUP:
+                    scan_end(stack_pop());
+                    break;
+                case RAW_TYPE_VARINT:
+                case RAW_TYPE_FIXED32:
+                case RAW_TYPE_FIXED64:
+                case RAW_TYPE_LENGTH_DELIMITED:
+                    item = peekIsa(false).get(wireFieldNumber);
+                    read_field(item, wireType);
+                    break;
+                case RAW_TYPE_SCHEMA:
+                    read_schema(wireFieldNumber);
+                    break;
+                case RAW_TYPE_SIZED_START_GROUP:
+                    {
+                        item = peekIsa(false).get(wireFieldNumber);
+                        final int length = read_rawvarint32();
+                        scannedField.name = item.name;
+                        scannedField.item = item;
+                        scannedField.index = item.id;
+                        scannedField.level = depth;
+                        scannedField.type = TYPE_START_GROUP;
+                        scannedField.is_start = true;
+                        stack_push(item, read_offset() + length);
+                    }
+                    break;
+                case RAW_TYPE_START_GROUP:
+                    {
+                        item = peekIsa(false).get(wireFieldNumber);
+                        scannedField.name = item.name;
+                        scannedField.item = item;
+                        scannedField.index = item.id;
+                        scannedField.level = depth;
+                        scannedField.type = TYPE_START_GROUP;
+                        scannedField.is_start = true;
+                        stack_push(item, -1);
+                    }
+                    break;
+                default:
+                    throw new RuntimeException("invalidwiretype");
+            }
+        } while (wireType == RAW_TYPE_SCHEMA || again);
+
+        if (projection != null && scannedField.is_start)
+        {
+            if (projectionStack.length <= depth)
+            {
+                projectionStack = Arrays.copyOf(projectionStack, stack.length);
+            }
+            projectionStack[depth] = selected;
+        }
+
+        return true;
+    }
+
+    /*
+     * decodes the rest of the stream into callbacks of visitor, without a current
+     * item per value and without boxing. the values come from the same wire decoding
+     * readItem() does and the projection, if any, applies alike. a push reader is
+     * not supported since a callback can not be taken back when input runs out.
+     */
+    public void decode(final SsdsVisitor visitor)
+    {
+        if (push)
+        {
+            throw new RuntimeException("decode needs a pull reader");
+        }
+        if (scannedField == null)
+        {
+            scannedField = new Fld();
+        }
+        final Fld field = scannedField;
+        field.clear();
+        while (!this.eos)
+        {
+            final int wireTag = read_rawvarint32();
+            if (wireTag == 0)
+            {
+                break;
+            }
+            final int wireType = wireTag & TAG_TYPE_MASK;
+            final int wireFieldNumber = wireTag >>> TAG_TYPE_BITS;
+            if (wireType == RAW_TYPE_SCHEMA)
+            {
+                read_schema(wireFieldNumber);
+                continue;
+            }
+            if (wireType == RAW_TYPE_END_GROUP)
+            {
+                final Itm item = stack_pop();
+                visitor.onEnd(item.id, item.name, depth);
+                continue;
+            }
+            final Itm item = peekIsa(false).get(wireFieldNumber);
+            Prj selected = null;
+            if (projection != null)
+            {
+                selected = project(item);
+                if (selected == NOT_SELECTED || (!selected.all && wireType != RAW_TYPE_START_GROUP && wireType != RAW_TYPE_SIZED_START_GROUP))
+                {
+                    read_skipitem(wireType);
+                    continue;
+                }
+            }
+            switch (wireType)
+            {
+                case RAW_TYPE_START_GROUP:
+                case RAW_TYPE_SIZED_START_GROUP:
+                    {
+                        final long mark = wireType == RAW_TYPE_SIZED_START_GROUP ? read_rawvarint32() : -1;
+                        if (!visitor.onStart(item.id, item.name, depth))
+                        {
+                            if (mark >= 0)
+                            {
+                                read_skipbytes(mark);
+                            }
+                            else
+                            {
+                                read_skipgroup();
+                            }
+                            break;
+                        }
+                        stack_push(item, mark >= 0 ? read_offset() + mark : -1);
+                        if (selected != null)
+                        {
+                            if (projectionStack.length <= depth)
+                            {
+                                projectionStack = Arrays.copyOf(projectionStack, stack.length);
+                            }
+                            projectionStack[depth] = selected;
+                        }
+                    }
+                    break;
+                case RAW_TYPE_VARINT:
+                    switch (item.type)
+                    {
+                        case ITM_TYPE_BOOLEAN:
+                            visitor.onBoolean(item.id, item.name, read_rawvarint32() != 0);
+                            break;
+                        case ITM_TYPE_ENUM:
+                            {
+                                final int ordinal = read_rawvarint32();
+                                visitor.onEnum(item.id, item.name, ordinal, item.isa.get(ordinal).name);
+                            }
+                            break;
+                        case ITM_TYPE_UINT32:
+                            visitor.onInt(item.id, item.name, read_rawvarint32());
+                            break;
+                        case ITM_TYPE_SINT32:
+                            {
+                                final int n = read_rawvarint32();
+                                visitor.onInt(item.id, item.name, (n >>> 1) ^ -(n & 1));
+                            }
+                            break;
+                        case ITM_TYPE_UINT64:
+                            visitor.onLong(item.id, item.name, read_rawvarint64());
+                            break;
+                        case ITM_TYPE_SINT64:
+                            {
+                                final long n = read_rawvarint64();
+                                visitor.onLong(item.id, item.name, (n >>> 1) ^ -(n & 1));
+                            }
+                            break;
+                        case ITM_TYPE_DICT_STRING:
+                            {
+                                final Itm entry = item.isa.get(read_rawvarint32());
+                                if (entry.utf8 == null)
+                                {
+                                    entry.utf8 = ByteBuffer.wrap(entry.name.getBytes(UTF8));
+                                }
+                                visitor.onString(item.id, item.name, entry.utf8, 0, entry.utf8.capacity());
+                            }
+                            break;
+                        default:
+                            throw new RuntimeException("bad type for readVarint");
+                    }
+                    break;
+                case RAW_TYPE_FIXED32:
+                    switch (item.type)
+                    {
+                        case ITM_TYPE_FIXED32:
+                            visitor.onInt(item.id, item.name, read_rawlittleendian32());
+                            break;
+                        case ITM_TYPE_SINGLE:
+                            visitor.onFloat(item.id, item.name, Float.intBitsToFloat(read_rawlittleendian32()));
+                            break;
+                        default:
+                            throw new RuntimeException("bad type for fixed32");
+                    }
+                    break;
+                case RAW_TYPE_FIXED64:
+                    switch (item.type)
+                    {
+                        case ITM_TYPE_FIXED64:
+                            visitor.onLong(item.id, item.name, read_rawlittleendian64());
+                            break;
+                        case ITM_TYPE_DOUBLE:
+                            visitor.onDouble(item.id, item.name, Double.longBitsToDouble(read_rawlittleendian64()));
+                            break;
+                        default:
+                            throw new RuntimeException("bad type for fixed64");
+                    }
+                    break;
+                case RAW_TYPE_LENGTH_DELIMITED:
+                    // the value is left in place by read_value, the field only carries where it is
+                    read_value();
+                    switch (item.type)
+                    {
+                        case ITM_TYPE_STRING:
+                        case ITM_TYPE_DICT_STRING:
+                            visitor.onString(item.id, item.name, field.value_buffer, field.value_offset, field.value_length);
+                            break;
+                        case ITM_TYPE_BYTES:
+                            visitor.onBytes(item.id, item.name, field.value_buffer, field.value_offset, field.value_length);
+                            break;
+                        case ITM_TYPE_UINT32_ARRAY:
+                        case ITM_TYPE_UINT64_ARRAY:
+                        case ITM_TYPE_SINT32_ARRAY:
+                        case ITM_TYPE_SINT64_ARRAY:
+                        case ITM_TYPE_SINGLE_ARRAY:
+                        case ITM_TYPE_DOUBLE_ARRAY:
+                        case ITM_TYPE_DELTA_UINT32_ARRAY:
+                        case ITM_TYPE_DELTA_UINT64_ARRAY:
+                        case ITM_TYPE_DELTA_SINT32_ARRAY:
+                        case ITM_TYPE_DELTA_SINT64_ARRAY:
+                            field.item = item;
+                            field.type = type_code(item.type);
+                            visitor.onArray(item.id, item.name, field.type);
+                            break;
+                        default:
+                            throw new RuntimeException("bad type for length delimited");
+                    }
+                    field.clear();
+                    break;
+                default:
+                    throw new RuntimeException("invalidwiretype");
+            }
+        }
+        field.clear();
+    }
+
+    /*
+     * decodes the value of item, whose tag of wireType was just read, into the current
+     * item.
+     */
+    private void read_field(final Itm item, final int wireType)
+    {
+        scannedField.name = item.name;
+        scannedField.item = item;
+        scannedField.level = depth;
+        scannedField.index = item.id;
+        switch (wireType)
+        {
+            case RAW_TYPE_VARINT:
+                switch (item.type)
+                {
+                    case ITM_TYPE_BOOLEAN:
+                        scannedField.type = TYPE_BOOLEAN;
+                        scannedField.long_value = read_rawvarint32() != 0 ? 1 : 0;
+                        break;
+                    case ITM_TYPE_ENUM:
+                        scannedField.type = TYPE_ENUM;
+                        scannedField.isa_name = item.isa.name;
+                        scannedField.long_value = read_rawvarint32();
+                        break;
+                    case ITM_TYPE_UINT32:
+                        scannedField.type = TYPE_UINT32;
+                        scannedField.long_value = read_rawvarint32() & 0xffffffffL;
+                        break;
+                    case ITM_TYPE_DICT_STRING:
+                        scannedField.type = TYPE_STRING;
+                        scannedField.long_value = read_rawvarint32();
+                        scannedField.value = item.isa.get((int)scannedField.long_value).name;
+                        break;
+                    case ITM_TYPE_UINT64:
+                        scannedField.type = TYPE_UINT64;
+                        scannedField.long_value = read_rawvarint64();
+                        break;
+                    case ITM_TYPE_SINT32:
+                        scannedField.type = TYPE_SINT32;
+                        {
+                        	int n = read_rawvarint32();
+                        	scannedField.long_value = (n >>> 1) ^ -(n & 1);
+                        }
+                        break;
+                    case ITM_TYPE_SINT64:
+                        scannedField.type = TYPE_SINT64;
+                        {
+                        	long n = read_rawvarint64();
+                        	scannedField.long_value = (n >>> 1) ^ -(n & 1);
+                        }
+                        break;
+                    default:
+                        throw new RuntimeException("bad type for readVarint");
+                }
+                break;
+            case RAW_TYPE_FIXED32:
+                switch (item.type)
+                {
+                    case ITM_TYPE_FIXED32:
+                        scannedField.type = TYPE_FIXED32;
+                        scannedField.long_value = read_rawlittleendian32();
+                        break;
+                    case ITM_TYPE_SINGLE:
+                        scannedField.type = TYPE_SINGLE;
+                        scannedField.double_value = Float.intBitsToFloat(read_rawlittleendian32());
+                        break;
+                    default:
+                        throw new RuntimeException("bad type for fixed32");
+                }
+                break;
+            case RAW_TYPE_FIXED64:
+                switch (item.type)
+                {
+                    case ITM_TYPE_FIXED64:
+                        scannedField.type = TYPE_FIXED64;
+                        scannedField.long_value = read_rawlittleendian64();
+                        break;
+                    case ITM_TYPE_DOUBLE:
+                        scannedField.type = TYPE_DOUBLE;
+                        scannedField.double_value = Double.longBitsToDouble(read_rawlittleendian64());
+                        break;
+                    default:
+                        throw new RuntimeException("bad type for fixed64");
+                }
+                break;
+            case RAW_TYPE_LENGTH_DELIMITED:
+                switch (item.type)
+                {
+                    case ITM_TYPE_STRING:
+                        scannedField.type = TYPE_STRING;
+                        read_value();
+                        break;
+                    case ITM_TYPE_BYTES:
+                        scannedField.type = TYPE_BYTES;
+                        read_value();
+                        break;
+                    case ITM_TYPE_DICT_STRING:
+                        scannedField.type = TYPE_STRING;
+                        read_value();
+                        break;
+                    case ITM_TYPE_UINT32_ARRAY:
+                    case ITM_TYPE_UINT64_ARRAY:
+                    case ITM_TYPE_SINT32_ARRAY:
+                    case ITM_TYPE_SINT64_ARRAY:
+                    case ITM_TYPE_SINGLE_ARRAY:
+                    case ITM_TYPE_DOUBLE_ARRAY:
+                    case ITM_TYPE_DELTA_UINT32_ARRAY:
+                    case ITM_TYPE_DELTA_UINT64_ARRAY:
+                    case ITM_TYPE_DELTA_SINT32_ARRAY:
+                    case ITM_TYPE_DELTA_SINT64_ARRAY:
+                        scannedField.type = type_code(item.type);
+                        read_value();
+                        break;
+                    default:
+                        throw new RuntimeException("bad type for length delimited");
+                }
+                break;
+            default:
+                throw new RuntimeException("invalidwiretype");
+        }
+    }
+
+    /*
+     * indexes the rest of the stream in one pass into a Tape, which navigates it and
+     * selects any of its items as the current item afterwards. the reader has to be
+     * one over a ByteBuffer since values are decoded from it when selected. schema
+     * records and the projection, if any, are applied while indexing and the reader
+     * is left at the end of the stream.
+     */
+    public Tape tape()
+    {
+        if (push || inputStream != null || fileChannel != null)
+        {
+            throw new RuntimeException("tape needs a reader over a ByteBuffer");
+        }
+        if (scannedField == null)
+        {
+            scannedField = new Fld();
+        }
+        scannedField.clear();
+        // items take a few bytes each, a guess that saves most of the growing
+        final Tape tape = new Tape(Math.max(64, readBuffer.remaining() / 8));
+        int base = depth;           // structures opened before tape() have no entry
+        int[] open = new int[stack.length];
+        while (!this.eos)
+        {
+            final int wireTag = read_rawvarint32();
+            if (wireTag == 0)
+            {
+                break;
+            }
+            final int wireType = wireTag & TAG_TYPE_MASK;
+            final int wireFieldNumber = wireTag >>> TAG_TYPE_BITS;
+            if (wireType == RAW_TYPE_SCHEMA)
+            {
+                read_schema(wireFieldNumber);
+                continue;
+            }
+            if (wireType == RAW_TYPE_END_GROUP)
+            {
+                stack_pop();
+                if (depth >= base)
+                {
+                    tape.close(open[depth]);
+                }
+                else
+                {
+                    base = depth;
+                }
+                continue;
+            }
+            final Itm item = peekIsa(false).get(wireFieldNumber);
+            Prj selected = null;
+            if (projection != null)
+            {
+                selected = project(item);
+                if (selected == NOT_SELECTED || (!selected.all && wireType != RAW_TYPE_START_GROUP && wireType != RAW_TYPE_SIZED_START_GROUP))
+                {
+                    read_skipitem(wireType);
+                    continue;
+                }
+            }
+            final int parent = depth > base ? open[depth - 1] : -1;
+            if (wireType == RAW_TYPE_START_GROUP || wireType == RAW_TYPE_SIZED_START_GROUP)
+            {
+                final long mark = wireType == RAW_TYPE_SIZED_START_GROUP ? read_rawvarint32() : -1;
+                if (depth == open.length)
+                {
+                    open = Arrays.copyOf(open, depth * 2);
+                }
+                open[depth] = tape.add(item, wireType, depth, read_offset(), parent);
+                stack_push(item, mark >= 0 ? read_offset() + mark : -1);
+                if (selected != null)
+                {
+                    if (projectionStack.length <= depth)
+                    {
+                        projectionStack = Arrays.copyOf(projectionStack, stack.length);
+                    }
+                    projectionStack[depth] = selected;
+                }
+            }
+            else
+            {
+                tape.add(item, wireType, depth, read_offset(), parent);
+                read_skipvalue(wireType);
+            }
+        }
+        this.eos = true;
+        tape.refs = null;
+        return tape;
+    }
+
+    /*
+     * flat index of a stream built by tape(). every item other than an end item is an
+     * entry, numbered in stream order, of three longs: the item, wire type and level,
+     * the offset of the value or, for a structure, of its first item, and the parent
+     * entry with the entry following the structure. navigation only looks at the
+     * array, values are decoded when an entry is selected. the items, and so the
+     * schema, are the reader's, shared by every entry of the same item.
+     */
+    public final class Tape
+    {
+        private long[] entries;
+        private int count = 0;
+        private Itm[] items = new Itm[16];
+        private int itemCount = 0;
+        private IdentityHashMap<Itm, Integer> refs = new IdentityHashMap<Itm, Integer>();   // while building, index of an item in items
+
+        private Tape(final int capacity)
+        {
+            entries = new long[3 * capacity];
+        }
+
+        private int add(final Itm item, final int wireType, final int level, final long offset, final int parent)
+        {
+            Integer ref = refs.get(item);
+            if (ref == null)
+            {
+                if (itemCount == items.length)
+                {
+                    items = Arrays.copyOf(items, itemCount * 2);
+                }
+                ref = itemCount;
+                refs.put(item, ref);
+                items[itemCount++] = item;
+            }
+            if (3 * count == entries.length)
+            {
+                entries = Arrays.copyOf(entries, entries.length * 2);
+            }
+            final int i = 3 * count;
+            entries[i] = ((long)ref.intValue() << 32) | (wireType << 28) | level;
+            entries[i + 1] = offset;
+            entries[i + 2] = ((long)parent << 32) | (count + 1);
+            return count++;
+        }
+
+        private void close(final int entry)
+        {
+            entries[3 * entry + 2] = (entries[3 * entry + 2] & 0xffffffff00000000L) | count;
+        }
+
+        public int size()
+        {
+            return count;
+        }
+
+        public String name(final int entry)
+        {
+            return items[(int)(entries[3 * entry] >>> 32)].name;
+        }
+
+        /* itemIndex() of the entry's item */
+        public int itemIndex(final int entry)
+        {
+            return items[(int)(entries[3 * entry] >>> 32)].id;
+        }
+
+        /* TYPE_START_GROUP for a structure or the TYPE_ constant of the value */
+        public int type(final int entry)
+        {
+            return isStart(entry) ? TYPE_START_GROUP : type_code(items[(int)(entries[3 * entry] >>> 32)].type);
+        }
+
+        public int level(final int entry)
+        {
+            return (int)entries[3 * entry] & 0x0fffffff;
+        }
+
+        public boolean isStart(final int entry)
+        {
+            final int wireType = ((int)entries[3 * entry] >>> 28) & TAG_TYPE_MASK;
+            return wireType == RAW_TYPE_START_GROUP || wireType == RAW_TYPE_SIZED_START_GROUP;
+        }
+
+        /* stream offset of the value, or of the first item of a structure */
+        public long offset(final int entry)
+        {
+            return entries[3 * entry + 1];
+        }
+
+        /* the structure holding the entry, -1 at the top level */
+        public int parent(final int entry)
+        {
+            return (int)(entries[3 * entry + 2] >> 32);
+        }
+
+        /* first entry of a structure, or of the tape for entry -1, -1 when empty */
+        public int firstChild(final int entry)
+        {
+            if (entry < 0)
+            {
+                return count > 0 ? 0 : -1;
+            }
+            return entry + 1 < (int)entries[3 * entry + 2] ? entry + 1 : -1;
+        }
+
+        /* the entry following entry and everything in it at the same level, -1 for the last one */
+        public int nextSibling(final int entry)
+        {
+            final int next = (int)entries[3 * entry + 2];
+            return next < count && parent(next) == parent(entry) ? next : -1;
+        }
+
+        /* first entry named name directly in the structure entry, or at the top level for -1 */
+        public int child(final int entry, final String name)
+        {
+            for (int i = firstChild(entry); i >= 0; i = nextSibling(i))
+            {
+                if (name(i).equals(name))
+                {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /*
+         * makes entry the reader's current item, so that itemValue(), itemLong() and the
+         * other item methods read its value. a structure is selected as its start item.
+         */
+        public void select(final int entry)
+        {
+            final Itm item = items[(int)(entries[3 * entry] >>> 32)];
+            final Fld field = scannedField;
+            field.clear();
+            if (isStart(entry))
+            {
+                field.name = item.name;
+                field.item = item;
+                field.index = item.id;
+                field.type = TYPE_START_GROUP;
+                field.is_start = true;
+            }
+            else
+            {
+                readBuffer.position((int)entries[3 * entry + 1]);
+                read_field(item, ((int)entries[3 * entry] >>> 28) & TAG_TYPE_MASK);
+            }
+            field.level = level(entry);
+        }
+    }
+
+    public boolean isStartItem()
+    {
+        if (scannedField == null) throw new RuntimeException("no item read");
+        return scannedField.is_start;
+    }
+
+    public boolean isEndItem()
+    {
+        if (scannedField == null) throw new RuntimeException("no item read");
+        return scannedField.is_end;
+    }
+
+    public String itemTypeName()
+    {
+        if (scannedField == null) throw new RuntimeException("no item read");
+        return TYPE_NAMES[scannedField.type];
+    }
+
+    /*
+     * one of the TYPE_ constants, cheaper to dispatch on than itemTypeName().
+     */
+    public int itemType()
+    {
+        if (scannedField == null) throw new RuntimeException("no item read");
+        return scannedField.type;
+    }
+
+    public String itemTypeIsaName()
+    {
+        if (scannedField == null) throw new RuntimeException("no item read");
+        return scannedField.isa_name;
+    }
+
+    public String itemName()
+    {
+        if (scannedField == null) throw new RuntimeException("no item read");
+        return scannedField.name;
+    }
+
+    public int itemIndex()
+    {
+        if (scannedField == null) throw new RuntimeException("no item read");
+        return scannedField.index;
+    }
+
+    public int itemLevel()
+    {
+        if (scannedField == null) throw new RuntimeException("no item read");
+        return scannedField.level;
+    }
+
+    /*
+     * boxes primitive values on each call, the typed accessors below avoid that.
+     */
+    public Object itemValue()
+    {
+        if (scannedField == null) throw new RuntimeException("no item read");
+        final Fld field = scannedField;
+        switch (field.type)
+        {
+            case TYPE_BOOLEAN:
+                return field.long_value != 0;
+            case TYPE_ENUM:
+                return field.item.isa.get((int)field.long_value).name;
+            case TYPE_UINT32:
+            case TYPE_SINT32:
+            case TYPE_FIXED32:
+                return (int)field.long_value;
+            case TYPE_UINT64:
+            case TYPE_SINT64:
+            case TYPE_FIXED64:
+                return field.long_value;
+            case TYPE_SINGLE:
+                return (float)field.double_value;
+            case TYPE_DOUBLE:
+                return field.double_value;
+            case TYPE_STRING:
+            case TYPE_BYTES:
+                return lazy_value(field);
+            case TYPE_UINT32_ARRAY:
+            case TYPE_SINT32_ARRAY:
+                {
+                    final int[] values = new int[itemArrayLength()];
+                    itemInts(values, 0);
+                    return values;
+                }
+            case TYPE_UINT64_ARRAY:
+            case TYPE_SINT64_ARRAY:
+                {
+                    final long[] values = new long[itemArrayLength()];
+                    itemLongs(values, 0);
+                    return values;
+                }
+            case TYPE_SINGLE_ARRAY:
+                {
+                    final float[] values = new float[itemArrayLength()];
+                    itemFloats(values, 0);
+                    return values;
+                }
+            case TYPE_DOUBLE_ARRAY:
+                {
+                    final double[] values = new double[itemArrayLength()];
+                    itemDoubles(values, 0);
+                    return values;
+                }
+            default:
+                return field.value;
+        }
+    }
+
+    /*
+     * raw bytes of a string (utf-8) or bytes item without copying them, the view is
+     * only valid until the next item is read.
+     */
+    public ByteBuffer itemBytes()
+    {
+        if (scannedField == null) throw new RuntimeException("no item read");
+        final Fld field = dict_bytes(scannedField);
+        if (field.value_buffer == null) throw new RuntimeException("not a string or bytes item");
+        final ByteBuffer view = field.value_buffer.asReadOnlyBuffer();
+        view.limit(field.value_offset + field.value_length);
+        view.position(field.value_offset);
+        return view.slice();
+    }
+
+    /*
+     * compares the raw bytes of a string (utf-8) or bytes item without decoding it.
+     */
+    public boolean itemValueEquals(final byte[] value)
+    {
+        if (scannedField == null) throw new RuntimeException("no item read");
+        return dict_bytes(scannedField).value_length == value.length && value_matches(value);
+    }
+
+    public boolean itemValueStartsWith(final byte[] prefix)
+    {
+        if (scannedField == null) throw new RuntimeException("no item read");
+        return dict_bytes(scannedField).value_length >= prefix.length && value_matches(prefix);
+    }
+
+    /*
+     * a string dictionary reference has no bytes in the read buffer, its entry keeps
+     * the utf-8 of its value once asked for.
+     */
+    private Fld dict_bytes(final Fld field)
+    {
+        if (field.value_buffer == null && field.item != null && field.item.type == ITM_TYPE_DICT_STRING && !field.is_end)
+        {
+            final Itm entry = field.item.isa.get((int)field.long_value);
+            if (entry.utf8 == null)
+            {
+                entry.utf8 = ByteBuffer.wrap(entry.name.getBytes(UTF8));
+            }
+            field.value_buffer = entry.utf8;
+            field.value_offset = 0;
+            field.value_length = entry.utf8.capacity();
+        }
+        return field;
+    }
+
+    private boolean value_matches(final byte[] value)
+    {
+        final Fld field = scannedField;
+        if (field.value_buffer == null) throw new RuntimeException("not a string or bytes item");
+        final ByteBuffer buffer = field.value_buffer;
+        final int offset = field.value_offset;
+        for (int i = 0; i < value.length; i++)
+        {
+            if (buffer.get(offset + i) != value[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * strings and bytes are only copied out of the read buffer when asked for.
+     */
+    private Object lazy_value(final Fld field)
+    {
+        if (field.value == null && field.value_buffer != null)
+        {
+            final ByteBuffer buffer = field.value_buffer;
+            if (field.type == TYPE_STRING && buffer.hasArray())
+            {
+                field.value = new String(buffer.array(), buffer.arrayOffset() + field.value_offset, field.value_length, UTF8);
+            }
+            else
+            {
+                final byte[] bytes = new byte[field.value_length];
+                final ByteBuffer view = buffer.duplicate();
+                view.position(field.value_offset);
+                view.get(bytes);
+                field.value = field.type == TYPE_STRING ? new String(bytes, UTF8) : bytes;
+            }
+        }
+        return field.value;
+    }
+
+    /*
+     * value of a boolean, enum or integer item, enums return their ordinal.
+     */
+    public int itemInt()
+    {
+        if (scannedField == null) throw new RuntimeException("no item read");
+        if (scannedField.type < TYPE_BOOLEAN || scannedField.type > TYPE_FIXED64) throw new RuntimeException("not an integer item");
+        return (int)scannedField.long_value;
+    }
+
+    public long itemLong()
+    {
+        if (scannedField == null) throw new RuntimeException("no item read");
+        if (scannedField.type < TYPE_BOOLEAN || scannedField.type > TYPE_FIXED64) throw new RuntimeException("not an integer item");
+        return scannedField.long_value;
+    }
+
+    public double itemDouble()
+    {
+        if (scannedField == null) throw new RuntimeException("no item read");
+        if (scannedField.type != TYPE_DOUBLE && scannedField.type != TYPE_SINGLE) throw new RuntimeException("not a floating point item");
+        return scannedField.double_value;
+    }
+
+    public float itemFloat()
+    {
+        if (scannedField == null) throw new RuntimeException("no item read");
+        if (scannedField.type != TYPE_DOUBLE && scannedField.type != TYPE_SINGLE) throw new RuntimeException("not a floating point item");
+        return (float)scannedField.double_value;
+    }
+
+    public boolean itemBool()
+    {
+        if (scannedField == null) throw new RuntimeException("no item read");
+        if (scannedField.type != TYPE_BOOLEAN) throw new RuntimeException("not a boolean item");
+        return scannedField.long_value != 0;
+    }
+
+    /*
+     * index of the enum value within its enumeration, numbered from 1 in the order
+     * the values were first written.
+     */
+    public int itemEnumOrdinal()
+    {
+        if (scannedField == null) throw new RuntimeException("no item read");
+        if (scannedField.type != TYPE_ENUM) throw new RuntimeException("not an enum item");
+        return (int)scannedField.long_value;
+    }
+
+    /*
+     * number of values in an array item, for sizing the arrays given to itemInts(),
+     * itemLongs(), itemFloats() and itemDoubles().
+     */
+    public int itemArrayLength()
+    {
+        if (scannedField == null) throw new RuntimeException("no item read");
+        final Fld field = scannedField;
+        switch (field.type)
+        {
+            case TYPE_SINGLE_ARRAY:
+                return field.value_length / 4;
+            case TYPE_DOUBLE_ARRAY:
+                return field.value_length / 8;
+            case TYPE_UINT32_ARRAY:
+            case TYPE_UINT64_ARRAY:
+            case TYPE_SINT32_ARRAY:
+            case TYPE_SINT64_ARRAY:
+                {
+                    if (is_delta(field))
+                    {
+                        return (int)packed_varint(field.value_buffer, field.value_offset);
+                    }
+                    // every varint ends in the one byte without the continuation bit
+                    final ByteBuffer buffer = field.value_buffer;
+                    final int end = field.value_offset + field.value_length;
+                    int count = 0;
+                    for (int i = field.value_offset; i < end; i++)
+                    {
+                        count += ~buffer.get(i) >>> 31;
+                    }
+                    return count;
+                }
+            default:
+                throw new RuntimeException("not an array item");
+        }
+    }
+
+    /*
+     * the values of a uint32 or sint32 array item are stored into values from start,
+     * returns how many there were.
+     */
+    public int itemInts(final int[] values, final int start)
+    {
+        if (scannedField == null) throw new RuntimeException("no item read");
+        if (scannedField.type != TYPE_UINT32_ARRAY && scannedField.type != TYPE_SINT32_ARRAY) throw new RuntimeException("not an int array item");
+        return read_packed(scannedField, null, values, start);
+    }
+
+    /*
+     * the values of an integer array item are stored into values from start, returns
+     * how many there were.
+     */
+    public int itemLongs(final long[] values, final int start)
+    {
+        if (scannedField == null) throw new RuntimeException("no item read");
+        if (scannedField.type < TYPE_UINT32_ARRAY || scannedField.type > TYPE_SINT64_ARRAY) throw new RuntimeException("not an integer array item");
+        return read_packed(scannedField, values, null, start);
+    }
+
+    public int itemFloats(final float[] values, final int start)
+    {
+        if (scannedField == null) throw new RuntimeException("no item read");
+        if (scannedField.type != TYPE_SINGLE_ARRAY) throw new RuntimeException("not a single array item");
+        final ByteBuffer buffer = packed_buffer(scannedField);
+        final int count = scannedField.value_length / 4;
+        if (values.length - start < count) throw new RuntimeException("array too small");
+        int position = scannedField.value_offset;
+        for (int i = 0; i < count; i++, position += 4)
+        {
+            values[start + i] = buffer.getFloat(position);
+        }
+        return count;
+    }
+
+    public int itemDoubles(final double[] values, final int start)
+    {
+        if (scannedField == null) throw new RuntimeException("no item read");
+        final Fld field = scannedField;
+        if (field.type == TYPE_SINGLE_ARRAY)
+        {
+            final ByteBuffer buffer = packed_buffer(field);
+            final int count = field.value_length / 4;
+            if (values.length - start < count) throw new RuntimeException("array too small");
+            int position = field.value_offset;
+            for (int i = 0; i < count; i++, position += 4)
+            {
+                values[start + i] = buffer.getFloat(position);
+            }
+            return count;
+        }
+        if (field.type != TYPE_DOUBLE_ARRAY) throw new RuntimeException("not a floating point array item");
+        final ByteBuffer buffer = packed_buffer(field);
+        final int count = field.value_length / 8;
+        if (values.length - start < count) throw new RuntimeException("array too small");
+        int position = field.value_offset;
+        for (int i = 0; i < count; i++, position += 8)
+        {
+            values[start + i] = buffer.getDouble(position);
+        }
+        return count;
     }
 
-    public String itemTypeName()
+    private static boolean is_delta(final Fld field)
     {
-        if (scannedField == null) throw new RuntimeException("no item read");
-        return scannedField.type_name;
+        switch (field.item.type)
+        {
+            case ITM_TYPE_DELTA_UINT32_ARRAY:
+            case ITM_TYPE_DELTA_UINT64_ARRAY:
+            case ITM_TYPE_DELTA_SINT32_ARRAY:
+            case ITM_TYPE_DELTA_SINT64_ARRAY:
+                return true;
+            default:
+                return false;
+        }
     }
 
-    public String itemTypeIsaName()
+    /*
+     * decodes a delta array, see write_delta(). the varints in it are written in their
+     * shortest form, so their length follows from their value.
+     */
+    private static int read_delta(final Fld field, final long[] longs, final int[] ints, final int start)
     {
-        if (scannedField == null) throw new RuntimeException("no item read");
-        return scannedField.isa_name;
+        final ByteBuffer buffer = field.value_buffer;
+        final boolean wide = field.type == TYPE_UINT64_ARRAY || field.type == TYPE_SINT64_ARRAY;
+        final boolean unsigned = field.type == TYPE_UINT32_ARRAY;
+        final int end = field.value_offset + field.value_length;
+        int position = field.value_offset;
+        final long count = packed_varint(buffer, position);
+        position += varint64_length(count);
+        if (count > (longs != null ? longs.length : ints.length) - start) throw new RuntimeException("array too small");
+        if (count == 0)
+        {
+            return 0;
+        }
+        long encoded = packed_varint(buffer, position);
+        position += varint64_length(encoded);
+        long value = (encoded >>> 1) ^ -(encoded & 1);
+        int n = start;
+        if (longs != null) longs[n++] = wide ? value : unsigned ? value & 0xffffffffL : (int)value; else ints[n++] = (int)value;
+        for (int b = 1; b < count; b += DELTA_BLOCK)
+        {
+            final int blockEnd = (int)Math.min(b + DELTA_BLOCK, count);
+            encoded = packed_varint(buffer, position);
+            position += varint64_length(encoded);
+            final long min = (encoded >>> 1) ^ -(encoded & 1);
+            final int width = buffer.get(position++);
+            if (width < 0 || width > 64 || position + ((blockEnd - b) * width + 7) / 8 > end) throw new RuntimeException("malformed delta array");
+            long bits = 0;
+            int pending = 0;
+            for (int i = b; i < blockEnd; i++)
+            {
+                long delta = 0;
+                int done = 0;
+                while (done < width)
+                {
+                    final int take = Math.min(width - done, 32);
+                    while (pending < take)
+                    {
+                        bits |= (long)(buffer.get(position++) & 0xFF) << pending;
+                        pending += 8;
+                    }
+                    delta |= (bits & ((1L << take) - 1)) << done;
+                    bits >>>= take;
+                    pending -= take;
+                    done += take;
+                }
+                value += delta + min;
+                if (longs != null) longs[n++] = wide ? value : unsigned ? value & 0xffffffffL : (int)value; else ints[n++] = (int)value;
+            }
+        }
+        return n - start;
     }
 
-    public String itemName()
+    private static long packed_varint(final ByteBuffer buffer, int position)
     {
-        if (scannedField == null) throw new RuntimeException("no item read");
-        return scannedField.name;
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7)
+        {
+            final int b = buffer.get(position++);
+            value |= (long)(b & 0x7F) << shift;
+            if (b >= 0)
+            {
+                return value;
+            }
+        }
+        throw new RuntimeException("malformed varint");
     }
 
-    public int itemIndex()
+    // values too large for the read buffer come in a wrapped array, which is big endian
+    private static ByteBuffer packed_buffer(final Fld field)
     {
-        if (scannedField == null) throw new RuntimeException("no item read");
-        return scannedField.index;
+        final ByteBuffer buffer = field.value_buffer;
+        return buffer.order() == ByteOrder.LITTLE_ENDIAN ? buffer : buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
     }
 
-    public int itemLevel()
+    /*
+     * decodes the varints of an array item into longs or ints, 32 bit items wrap the
+     * way itemInt() and itemLong() do for single values.
+     */
+    private static int read_packed(final Fld field, final long[] longs, final int[] ints, final int start)
     {
-        if (scannedField == null) throw new RuntimeException("no item read");
-        return scannedField.level;
+        if (is_delta(field))
+        {
+            return read_delta(field, longs, ints, start);
+        }
+        final ByteBuffer buffer = field.value_buffer;
+        final boolean zigzag = field.type == TYPE_SINT32_ARRAY || field.type == TYPE_SINT64_ARRAY;
+        final boolean wide = field.type == TYPE_UINT64_ARRAY || field.type == TYPE_SINT64_ARRAY;
+        final int limit = longs != null ? longs.length : ints.length;
+        final int end = field.value_offset + field.value_length;
+        int position = field.value_offset;
+        int n = start;
+        while (position < end)
+        {
+            long value = 0;
+            int shift = 0;
+            int b;
+            do
+            {
+                if (position == end || shift > 63) throw new RuntimeException("malformed varint");
+                b = buffer.get(position++);
+                value |= (long)(b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            if (zigzag)
+            {
+                value = (value >>> 1) ^ -(value & 1);
+            }
+            if (!wide)
+            {
+                // uint32 values above 2^31 stay positive in a long
+                value = zigzag ? (int)value : value & 0xffffffffL;
+            }
+            if (n == limit) throw new RuntimeException("array too small");
+            if (longs != null)
+            {
+                longs[n++] = value;
+            }
+            else
+            {
+                ints[n++] = (int)value;
+            }
+        }
+        return n - start;
     }
 
-    public Object itemValue()
+    private int read_rawvarint32()
     {
-        if (scannedField == null) throw new RuntimeException("no item read");
-        return scannedField.value;
+        final ByteBuffer buffer = readBuffer;
+        int position = buffer.position();
+        if (buffer.limit() - position < 10)
+        {
+            return read_rawvarint32_slow();
+        }
+        int tmp = buffer.get(position++);
+        if (tmp >= 0)
+        {
+            buffer.position(position);
+            return tmp;
+        }
+        int result = tmp & 0x7f;
+        if ((tmp = buffer.get(position++)) >= 0)
+        {
+            result |= tmp << 7;
+        }
+        else
+        {
+            result |= (tmp & 0x7f) << 7;
+            if ((tmp = buffer.get(position++)) >= 0)
+            {
+                result |= tmp << 14;
+            }
+            else
+            {
+                result |= (tmp & 0x7f) << 14;
+                if ((tmp = buffer.get(position++)) >= 0)
+                {
+                    result |= tmp << 21;
+                }
+                else
+                {
+                    result |= (tmp & 0x7f) << 21;
+                    result |= (tmp = buffer.get(position++)) << 28;
+                    if (tmp < 0)
+                    {
+                        int i = 0;
+                        while (buffer.get(position++) < 0)
+                        {
+                            if (++i == 5)
+                            {
+                                throw new RuntimeException("malformd varint32");
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        buffer.position(position);
+        return result;
     }
 
-    private int read_rawvarint32()
+    private int read_rawvarint32_slow()
     {
         byte tmp = read_rawbyte();
         if ((tmp & 0x80) == 0)
@@ -772,6 +4557,28 @@ public class SequentialStructuredDataStream {
     }
 
     private long read_rawvarint64()
+    {
+        final ByteBuffer buffer = readBuffer;
+        int position = buffer.position();
+        if (buffer.limit() - position < 10)
+        {
+            return read_rawvarint64_slow();
+        }
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7)
+        {
+            final byte b = buffer.get(position++);
+            result |= (long)(b & 0x7F) << shift;
+            if (b >= 0)
+            {
+                buffer.position(position);
+                return result;
+            }
+        }
+        throw new RuntimeException("malformed varint64");
+    }
+
+    private long read_rawvarint64_slow()
     {
         int shift = 0;
         long result = 0;
@@ -790,6 +4597,10 @@ public class SequentialStructuredDataStream {
 
     private int read_rawlittleendian32()
     {
+        if (readBuffer.remaining() >= 4 || read_refill(4))
+        {
+            return readBuffer.getInt();
+        }
         byte b1 = read_rawbyte();
         byte b2 = read_rawbyte();
         byte b3 = read_rawbyte();
@@ -802,6 +4613,10 @@ public class SequentialStructuredDataStream {
 
     private long read_rawlittleendian64()
     {
+        if (readBuffer.remaining() >= 8 || read_refill(8))
+        {
+            return readBuffer.getLong();
+        }
         byte b1 = read_rawbyte();
         byte b2 = read_rawbyte();
         byte b3 = read_rawbyte();
@@ -823,45 +4638,402 @@ public class SequentialStructuredDataStream {
 
     private byte read_rawbyte()
     {
-        int b;
-		try {
-			b = inputStream.read();
-		} catch (IOException e) {
-			b = -1 ;
-		}
-        if (b < 0)
+        if (!readBuffer.hasRemaining() && !read_refill(1))
         {
             this.eos = true;
             return 0;
         }
-        return (byte)b;
+        return readBuffer.get();
     }
 
     private byte[] read_rawbytes(final int size)
     {
         byte[] a = new byte[size];
-        int c;
-		try {
-			c = inputStream.read(a, 0, size);
-		} catch (IOException e) {
-			c = -1 ;
-		}
-        if (c != size)
+        int c = Math.min(size, readBuffer.remaining());
+        readBuffer.get(a, 0, c);
+        while (c < size)
         {
-            this.eos = true;
-            throw new RuntimeException("not enough bytes");
+            int n;
+            if (inputStream != null && size - c >= readBuffer.capacity())
+            {
+                // large values go straight from the stream into the array
+                try {
+                    n = inputStream.read(a, c, size - c);
+                } catch (IOException e) {
+                    throw new RuntimeException ("cannot read", e) ;
+                }
+            }
+            else if (read_refill(1))
+            {
+                n = Math.min(size - c, readBuffer.remaining());
+                readBuffer.get(a, c, n);
+            }
+            else
+            {
+                n = -1;
+            }
+            if (n < 0)
+            {
+                this.eos = true;
+                throw new RuntimeException("not enough bytes");
+            }
+            c += n;
         }
         return a;
     }
-    
+
+    /*
+     * skips count bytes, past the buffer this seeks a mapped file or skips the stream.
+     */
+    private void read_skipbytes(long count)
+    {
+        if (push && count > readBuffer.remaining())
+        {
+            throw UNDERFLOW;
+        }
+        final int buffered = (int)Math.min(count, readBuffer.remaining());
+        readBuffer.position(readBuffer.position() + buffered);
+        count -= buffered;
+        if (count == 0)
+        {
+            return;
+        }
+        windowPosition += readBuffer.limit();
+        if (fileChannel != null)
+        {
+            windowPosition += count;
+            readBuffer = ByteBuffer.allocate(0);
+            return;
+        }
+        readBuffer.clear();
+        readBuffer.limit(0);
+        while (count > 0)
+        {
+            long skipped;
+            try {
+                skipped = inputStream == null ? -1 : inputStream.skip(count);
+            } catch (IOException e) {
+                skipped = -1;
+            }
+            if (skipped > 0)
+            {
+                windowPosition += skipped;
+                count -= skipped;
+                continue;
+            }
+            // some streams cannot skip, read through them instead
+            if (!read_refill(1))
+            {
+                this.eos = true;
+                return;
+            }
+            final int n = (int)Math.min(count, readBuffer.remaining());
+            readBuffer.position(n);
+            count -= n;
+            if (count > 0)
+            {
+                windowPosition += readBuffer.limit();
+                readBuffer.clear();
+                readBuffer.limit(0);
+            }
+        }
+    }
+
+    /*
+     * offset in the stream of the next byte to decode.
+     */
+    private long read_offset()
+    {
+        return windowPosition + readBuffer.position();
+    }
+
+    /*
+     * moves the unread bytes to the front of the buffer and reads from the stream
+     * until at least needed bytes are buffered, returns false at end of stream.
+     */
+    private boolean read_refill(final int needed)
+    {
+        if (push)
+        {
+            throw UNDERFLOW;
+        }
+        if (fileChannel != null)
+        {
+            return read_remap(needed);
+        }
+        if (inputStream == null)
+        {
+            return readBuffer.remaining() >= needed;
+        }
+        final ByteBuffer buffer;
+        windowPosition += readBuffer.position();
+        if (needed > readBuffer.capacity())
+        {
+            // a value larger than the buffer, grow it so the value stays in one piece
+            buffer = ByteBuffer.allocate(Math.max(needed, readBuffer.capacity() * 2));
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(readBuffer);
+            readBuffer = buffer;
+        }
+        else
+        {
+            buffer = readBuffer;
+            buffer.compact();
+        }
+        try {
+            final byte[] array = buffer.array();
+            while (buffer.position() < needed)
+            {
+                int c = inputStream.read(array, buffer.position(), buffer.limit() - buffer.position());
+                if (c < 0)
+                {
+                    break;
+                }
+                buffer.position(buffer.position() + c);
+            }
+        } catch (IOException e) {
+            // a failing stream, e.g. a damaged block, must not pass for its end
+            throw new RuntimeException ("cannot read", e) ;
+        } finally {
+            buffer.flip();
+        }
+        return buffer.remaining() >= needed;
+    }
+
+    /*
+     * maps the next window of the file starting at the first unread byte.
+     */
+    private boolean read_remap(final int needed)
+    {
+        final long start = windowPosition + readBuffer.position();
+        try {
+            final long length = Math.min(windowSize, fileChannel.size() - start);
+            if (length > readBuffer.remaining())
+            {
+                readBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, start, length);
+                readBuffer.order(ByteOrder.LITTLE_ENDIAN);
+                windowPosition = start;
+            }
+        } catch (IOException e) {
+            // treated as end of stream
+        }
+        return readBuffer.remaining() >= needed;
+    }
+
+    /*
+     * reads a length delimited value, leaving it in place in the read buffer when it
+     * fits so that it is only decoded when asked for.
+     */
+    private void read_value()
+    {
+        final int size = read_rawvarint32();
+        final Fld field = scannedField;
+        field.value_length = size;
+        if (readBuffer.remaining() >= size || (size <= MAX_BUFFERED_VALUE && read_refill(size)))
+        {
+            field.value_buffer = readBuffer;
+            field.value_offset = readBuffer.position();
+            readBuffer.position(field.value_offset + size);
+        }
+        else
+        {
+            field.value_buffer = ByteBuffer.wrap(read_rawbytes(size));
+            field.value_offset = 0;
+        }
+    }
+
+    /*
+     * reads a name of a schema record, returning the string made earlier for the same
+     * bytes when there is one, so that streams repeating their schema do not allocate.
+     */
+    private String read_name()
+    {
+        final int size = read_rawvarint32();
+        if (readBuffer.remaining() < size && !read_refill(size))
+        {
+            return new String(read_rawbytes(size), UTF8);
+        }
+        if (nameCache == null)
+        {
+            nameCache = new String[256];
+        }
+        final int position = readBuffer.position();
+        int hash = size;
+        for (int i = 0; i < size; i++)
+        {
+            hash = 31 * hash + readBuffer.get(position + i);
+        }
+        final int slot = (hash ^ (hash >>> 16)) & (nameCache.length - 1);
+        String name = nameCache[slot];
+        if (name == null || !name_matches(name, position, size))
+        {
+            final byte[] bytes = new byte[size];
+            readBuffer.get(bytes);
+            name = new String(bytes, UTF8);
+            nameCache[slot] = name;
+            return name;
+        }
+        readBuffer.position(position + size);
+        return name;
+    }
+
+    private boolean name_matches(final String name, final int position, final int size)
+    {
+        if (name.length() != size)
+        {
+            return false;
+        }
+        for (int i = 0; i < size; i++)
+        {
+            if (name.charAt(i) != readBuffer.get(position + i))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private String read_rawstring() {
         int size = read_rawvarint32();
+        if (readBuffer.hasArray() && (readBuffer.remaining() >= size || read_refill(size)))
+        {
+            String value = new String(readBuffer.array(), readBuffer.arrayOffset() + readBuffer.position(), size, UTF8);
+            readBuffer.position(readBuffer.position() + size);
+            return value;
+        }
         byte[] bytes = read_rawbytes(size);
-    	try {
-    		return new String(bytes, "utf-8");
-    	} catch (Exception e) {
-    		throw new RuntimeException ("utf-8 not supported") ;
-    	}
+        return new String(bytes, UTF8);
+    }
+
+    /*
+     * starts writing a new stream to stream with the same instance, bytes not yet
+     * flushed to the old stream are dropped. an index set with setIndex() is flushed
+     * to its stream, which is left open, and the new stream is not indexed; setIndex()
+     * can be called again after a reset without keepSchema. with keepSchema the
+     * groups and items stay declared and their schema records are emitted again as
+     * the new stream uses them, so steady state writing allocates nothing. otherwise
+     * the instance starts over like a new writer. returns this, for use with pools.
+     */
+    public SequentialStructuredDataStream reset(final OutputStream stream, final boolean keepSchema)
+    {
+        if (outputStream == null)
+        {
+            throw new RuntimeException("not a stream writer");
+        }
+        outputStream = stream;
+        writePosition = 0;
+        writeOffset = 0;
+        sizedOrigin = 0;
+        reset_stack();
+        if (indexWriter != null)
+        {
+            indexWriter.flush();
+            indexWriter = null;
+        }
+        indexRecords = 0;
+        indexSchema = 0;
+        if (!keepSchema)
+        {
+            groups_clear();
+            version = null;
+            dictionary = null;
+            return this;
+        }
+        for (int i = 0; i < groupCount; i++)
+        {
+            final Grp g = indexedGroups[i];
+            g.emitted = g.preloadedCount >= 0;
+            g.emittedCount = Math.max(g.preloadedCount, 0);
+        }
+        if (dictionary != null)
+        {
+            write_raw_varint32((4 << TAG_TYPE_BITS) | RAW_TYPE_SCHEMA);
+            write_raw_littleendian32(dictionaryHash);
+        }
+        return this;
+    }
+
+    /*
+     * starts reading a new stream with the same instance. with keepSchema the group
+     * and item objects of the old stream are reused when the new stream declares the
+     * same ones again. returns this, for use with pools.
+     */
+    public SequentialStructuredDataStream reset(final InputStream stream, final boolean keepSchema)
+    {
+        if (inputStream == null)
+        {
+            throw new RuntimeException("not a stream reader");
+        }
+        inputStream = stream;
+        windowPosition = 0;
+        readBuffer.clear();
+        readBuffer.limit(0);
+        eos = false;
+        reset_stack();
+        if (scannedField != null)
+        {
+            scannedField.clear();
+        }
+        if (!keepSchema)
+        {
+            groups_clear();
+            version = null;
+            dictionary = null;
+        }
+        else
+        {
+            for (int i = 0; i < groupCount; i++)
+            {
+                final Grp g = indexedGroups[i];
+                if (g.preloadedCount >= 0)
+                {
+                    g.count = g.preloadedCount;
+                }
+                else
+                {
+                    g.stale = true;
+                }
+            }
+            if (dictionary == null)
+            {
+                version = null;
+            }
+        }
+        if (projection != null)
+        {
+            project_reset(projection);
+        }
+        return this;
+    }
+
+    private void reset_stack()
+    {
+        while (depth > 0)
+        {
+            stack[--depth] = null;
+        }
+        skipDepth = 0;
+    }
+
+    private void project_reset(final Prj node)
+    {
+        node.cacheGroup = null;
+        node.cache = null;
+        for (Prj child : node.children.values())
+        {
+            project_reset(child);
+        }
+        if (node.any != null)
+        {
+            project_reset(node.any);
+        }
+        if (node.merged != null)
+        {
+            for (Prj child : node.merged.values())
+            {
+                project_reset(child);
+            }
+        }
     }
 
     public void clear()
@@ -872,17 +5044,17 @@ public class SequentialStructuredDataStream {
             {
                 for (Grp g : namedGroups.values())
                 {
-                    g.indexedItems.clear();
                     g.namedItems.clear();
                     g.indexedItems = null;
                     g.namedItems = null;
                 }
-                namedGroups.clear();
+                groups_clear();
             }
             if (stack != null)
             {
-                stack.clear();
+                Arrays.fill(stack, null);
                 stack = null;
+                depth = 0;
             }
             if (scannedField != null)
             {
@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+ 
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * compression applied to each block of a block framed stream. a codec is identified in
+ * every block header by its id, ids 0 (stored) and 1 (deflate) are taken. instances
+ * are used by one stream at a time and need not be thread safe, the stream closes the
+ * codecs it was given when it is closed.
+ */
+public interface SsdsBlockCodec
+{
+    public static final int STORED = 0;
+    public static final int DEFLATE = 1;
+
+    /* id written into the header of every block compressed by this codec */
+    public int id();
+
+    /* upper bound of compress() output for an input of the given length */
+    public int maxCompressedLength(int length);
+
+    /* compresses src[0, length) into dst and returns the compressed length, -1 if it does not fit */
+    public int compress(byte[] src, int length, byte[] dst);
+
+    /* decompresses src[offset, offset + length) into exactly rawLength bytes of dst */
+    public void decompress(byte[] src, int offset, int length, byte[] dst, int rawLength) throws IOException;
+
+    /* releases memory held outside the heap, such as zlib's */
+    public default void close()
+    {
+    }
+
+    public static class Deflate implements SsdsBlockCodec
+    {
+        private final int level;
+        /* made on first use, a stream only ever compresses or only decompresses */
+        private Deflater deflater = null;
+        private Inflater inflater = null;
+
+        public Deflate()
+        {
+            this(Deflater.DEFAULT_COMPRESSION);
+        }
+
+        public Deflate(final int level)
+        {
+            if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION))
+            {
+                throw new RuntimeException("bad compression level");
+            }
+            this.level = level;
+        }
+
+        public int id()
+        {
+            return DEFLATE;
+        }
+
+        public int maxCompressedLength(final int length)
+        {
+            /* stored deflate blocks cost 5 bytes per 16 KB, plus slack for the final block */
+            return length + (length >> 12) + 64;
+        }
+
+        public int compress(final byte[] src, final int length, final byte[] dst)
+        {
+            if (deflater == null)
+            {
+                deflater = new Deflater(level, true);
+            }
+            deflater.reset();
+            deflater.setInput(src, 0, length);
+            deflater.finish();
+            int n = 0;
+            while (!deflater.finished())
+            {
+                n += deflater.deflate(dst, n, dst.length - n);
+                if (n == dst.length && !deflater.finished())
+                {
+                    return -1;
+                }
+            }
+            return n;
+        }
+
+        public void decompress(final byte[] src, final int offset, final int length, final byte[] dst, final int rawLength) throws IOException
+        {
+            if (inflater == null)
+            {
+                inflater = new Inflater(true);
+            }
+            inflater.reset();
+            inflater.setInput(src, offset, length);
+            try {
+                int n = 0;
+                while (n < rawLength && !inflater.finished())
+                {
+                    final int k = inflater.inflate(dst, n, rawLength - n);
+                    if (k == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    {
+                        break;
+                    }
+                    n += k;
+                }
+                if (n != rawLength)
+                {
+                    throw new IOException("bad block length");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("bad block data", e);
+            }
+        }
+
+        public void close()
+        {
+            if (deflater != null)
+            {
+                deflater.end();
+                deflater = null;
+            }
+            if (inflater != null)
+            {
+                inflater.end();
+                inflater = null;
+            }
+        }
+    }
+}
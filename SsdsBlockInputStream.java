@@ -0,0 +1,218 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+ 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/*
+ * reads the blocks written by SsdsBlockOutputStream, checks and decompresses each one and
+ * hands out the original bytes, so it can be given to SequentialStructuredDataStream.createReader
+ * in place of the raw input. a damaged block fails the read with an IOException: blocks
+ * are cut at byte counts, not at record boundaries, and schema records are written once
+ * where first used, so the bytes after a damaged block cannot be decoded anyway.
+ */
+public class SsdsBlockInputStream extends InputStream
+{
+    private static final int HEADER_SIZE = SsdsBlockOutputStream.HEADER_SIZE;
+
+    private final InputStream inputStream;
+    private final SsdsBlockCodec[] codecs = new SsdsBlockCodec[256];
+    private final CRC32C crc = new CRC32C();
+
+    /* frames as read from the input, unconsumed bytes are in[inStart, inEnd) */
+    private byte[] in = new byte[HEADER_SIZE + SsdsBlockOutputStream.DEFAULT_BLOCK_SIZE];
+    private int inStart = 0;
+    private int inEnd = 0;
+    private boolean inEos = false;
+
+    /* decoded bytes of the current block */
+    private byte[] block = new byte[SsdsBlockOutputStream.DEFAULT_BLOCK_SIZE];
+    private int blockPosition = 0;
+    private int blockLength = 0;
+
+    /* deflate is always understood, more codecs can be added by id */
+    public SsdsBlockInputStream(final InputStream inputStream, final SsdsBlockCodec... codecs)
+    {
+        this.inputStream = inputStream;
+        this.codecs[SsdsBlockCodec.DEFLATE] = new SsdsBlockCodec.Deflate();
+        for (SsdsBlockCodec codec : codecs)
+        {
+            if (codec.id() <= SsdsBlockCodec.STORED || codec.id() > 255)
+            {
+                throw new RuntimeException("bad codec id");
+            }
+            this.codecs[codec.id()] = codec;
+        }
+    }
+
+    public int read() throws IOException
+    {
+        if (blockPosition == blockLength && !read_block())
+        {
+            return -1;
+        }
+        return block[blockPosition++] & 0xff;
+    }
+
+    public int read(final byte[] b, final int off, final int len) throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+        if (blockPosition == blockLength && !read_block())
+        {
+            return -1;
+        }
+        final int n = Math.min(len, blockLength - blockPosition);
+        System.arraycopy(block, blockPosition, b, off, n);
+        blockPosition += n;
+        return n;
+    }
+
+    public int available()
+    {
+        return blockLength - blockPosition;
+    }
+
+    /* also closes the codecs, which are not used after */
+    public void close() throws IOException
+    {
+        try {
+            inputStream.close();
+        } finally {
+            for (SsdsBlockCodec codec : codecs)
+            {
+                if (codec != null)
+                {
+                    codec.close();
+                }
+            }
+        }
+    }
+
+    /*
+     * decodes the next block, returns false at the end of the input.
+     */
+    private boolean read_block() throws IOException
+    {
+        blockPosition = 0;
+        blockLength = 0;
+        while (blockLength == 0)
+        {
+            if (!read_fill(HEADER_SIZE))
+            {
+                if (inStart == inEnd)
+                {
+                    return false;
+                }
+                throw new IOException("truncated block");
+            }
+            read_frame();
+        }
+        return true;
+    }
+
+    /*
+     * checks and decodes the frame at inStart into block and consumes it.
+     */
+    private void read_frame() throws IOException
+    {
+        for (int i = 0; i < 4; i++)
+        {
+            if (in[inStart + i] != SsdsBlockOutputStream.MAGIC[i])
+            {
+                throw new IOException("bad block header");
+            }
+        }
+        final int codecId = in[inStart + 4] & 0xff;
+        final int rawLength = SsdsBlockOutputStream.get_int(in, inStart + 5);
+        final int storedLength = SsdsBlockOutputStream.get_int(in, inStart + 9);
+        if (rawLength < 0 || rawLength > SsdsBlockOutputStream.MAX_BLOCK_SIZE || storedLength < 0 || storedLength > rawLength)
+        {
+            throw new IOException("bad block length");
+        }
+        if (codecId == SsdsBlockCodec.STORED ? storedLength != rawLength : codecs[codecId] == null)
+        {
+            throw new IOException("unknown block codec");
+        }
+        if (!read_fill(HEADER_SIZE + storedLength))
+        {
+            throw new IOException("truncated block");
+        }
+        if (block.length < rawLength)
+        {
+            block = new byte[rawLength];
+        }
+        final int payload = inStart + HEADER_SIZE;
+        if (codecId == SsdsBlockCodec.STORED)
+        {
+            System.arraycopy(in, payload, block, 0, rawLength);
+        }
+        else
+        {
+            codecs[codecId].decompress(in, payload, storedLength, block, rawLength);
+        }
+        crc.reset();
+        crc.update(in, inStart + 4, 9);
+        crc.update(block, 0, rawLength);
+        if ((int) crc.getValue() != SsdsBlockOutputStream.get_int(in, inStart + 13))
+        {
+            throw new IOException("block checksum mismatch");
+        }
+        inStart = payload + storedLength;
+        blockLength = rawLength;
+    }
+
+    /*
+     * makes at least n unconsumed frame bytes available, false if the input ends first.
+     */
+    private boolean read_fill(final int n) throws IOException
+    {
+        if (inEnd - inStart >= n)
+        {
+            return true;
+        }
+        if (inStart + n > in.length)
+        {
+            if (n > in.length)
+            {
+                in = Arrays.copyOf(in, Math.max(n, in.length * 2));
+            }
+            System.arraycopy(in, inStart, in, 0, inEnd - inStart);
+            inEnd -= inStart;
+            inStart = 0;
+        }
+        while (inEnd - inStart < n && !inEos)
+        {
+            final int k = inputStream.read(in, inEnd, in.length - inEnd);
+            if (k < 0)
+            {
+                inEos = true;
+            }
+            else
+            {
+                inEnd += k;
+            }
+        }
+        return inEnd - inStart >= n;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+ 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32C;
+
+/*
+ * cuts a byte stream, normally the output of SequentialStructuredDataStream.createWriter,
+ * into independently framed blocks. every block is
+ *
+ *     "ssdb"  codec:byte  rawLength:int32  storedLength:int32  crc:int32  stored bytes
+ *
+ * with little endian integers and a crc32c over codec, both lengths and the raw bytes.
+ * a block is written when blockSize bytes are collected and on flush(). blocks that do
+ * not shrink are stored uncompressed.
+ */
+public class SsdsBlockOutputStream extends OutputStream
+{
+    static final byte[] MAGIC = { 's', 's', 'd', 'b' };
+    static final int HEADER_SIZE = 17;
+    static final int DEFAULT_BLOCK_SIZE = 1 << 16;
+    static final int MAX_BLOCK_SIZE = 1 << 26;
+
+    private final OutputStream outputStream;
+    private final SsdsBlockCodec codec;
+    private final byte[] block;
+    private int blockPosition = 0;
+    private final byte[] header = new byte[HEADER_SIZE];
+    private final byte[] payload;
+    private final CRC32C crc = new CRC32C();
+
+    public SsdsBlockOutputStream(final OutputStream outputStream)
+    {
+        this(outputStream, DEFAULT_BLOCK_SIZE, new SsdsBlockCodec.Deflate());
+    }
+
+    /* codec may be null to store blocks uncompressed */
+    public SsdsBlockOutputStream(final OutputStream outputStream, final int blockSize, final SsdsBlockCodec codec)
+    {
+        if (blockSize < 16 || blockSize > MAX_BLOCK_SIZE)
+        {
+            throw new RuntimeException("bad block size");
+        }
+        if (codec != null && codec.id() == SsdsBlockCodec.STORED)
+        {
+            throw new RuntimeException("codec id 0 is reserved");
+        }
+        this.outputStream = outputStream;
+        this.codec = codec;
+        this.block = new byte[blockSize];
+        this.payload = codec == null ? null : new byte[codec.maxCompressedLength(blockSize)];
+    }
+
+    public void write(final int b) throws IOException
+    {
+        if (blockPosition == block.length)
+        {
+            write_block();
+        }
+        block[blockPosition++] = (byte) b;
+    }
+
+    public void write(final byte[] b, int off, int len) throws IOException
+    {
+        while (len > 0)
+        {
+            if (blockPosition == block.length)
+            {
+                write_block();
+            }
+            final int n = Math.min(len, block.length - blockPosition);
+            System.arraycopy(b, off, block, blockPosition, n);
+            blockPosition += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    public void flush() throws IOException
+    {
+        write_block();
+        outputStream.flush();
+    }
+
+    /* also closes the codec, which is not used after */
+    public void close() throws IOException
+    {
+        try {
+            write_block();
+        } finally {
+            try {
+                outputStream.close();
+            } finally {
+                if (codec != null)
+                {
+                    codec.close();
+                }
+            }
+        }
+    }
+
+    private void write_block() throws IOException
+    {
+        if (blockPosition == 0)
+        {
+            return;
+        }
+        int codecId = SsdsBlockCodec.STORED;
+        int storedLength = blockPosition;
+        if (codec != null)
+        {
+            final int n = codec.compress(block, blockPosition, payload);
+            if (n >= 0 && n < blockPosition)
+            {
+                codecId = codec.id();
+                storedLength = n;
+            }
+        }
+        System.arraycopy(MAGIC, 0, header, 0, 4);
+        header[4] = (byte) codecId;
+        put_int(header, 5, blockPosition);
+        put_int(header, 9, storedLength);
+        crc.reset();
+        crc.update(header, 4, 9);
+        crc.update(block, 0, blockPosition);
+        put_int(header, 13, (int) crc.getValue());
+        outputStream.write(header, 0, HEADER_SIZE);
+        outputStream.write(codecId == SsdsBlockCodec.STORED ? block : payload, 0, storedLength);
+        blockPosition = 0;
+    }
+
+    static void put_int(final byte[] b, final int off, final int v)
+    {
+        b[off] = (byte) v;
+        b[off + 1] = (byte) (v >>> 8);
+        b[off + 2] = (byte) (v >>> 16);
+        b[off + 3] = (byte) (v >>> 24);
+    }
+
+    static int get_int(final byte[] b, final int off)
+    {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24;
+    }
+}
@@ -0,0 +1,488 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+ 
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.DoublePredicate;
+import java.util.function.Predicate;
+
+/*
+ * filter and group by aggregation over the structures of a stream, evaluated in one
+ * pass while reading. rows are the structures on a path such as "orders/order",
+ * "*" matching any name, and the other paths are relative to a row. the reader is
+ * given a projection of just the paths used, so everything else is skipped on the
+ * wire, and only one row and one state per group are held at a time.
+ *
+ * every group maps to its row count followed by the aggregates in the order they
+ * were added. a row passes when each filter path is present and accepted, a path
+ * occurring more than once in a row counts with its last value. a query is set up
+ * once and may then run on several readers and threads at the same time.
+ */
+public final class SsdsQuery
+{
+    private static final int SUM = 0;
+    private static final int MIN = 1;
+    private static final int MAX = 2;
+    private static final int AVG = 3;
+
+    private final String rows;
+    private final int rowLevel;
+    private final ArrayList<String> paths = new ArrayList<String>();     // by slot
+    private final Node root = new Node();
+    private final ArrayList<Integer> filterSlots = new ArrayList<Integer>();
+    private final ArrayList<Object> filters = new ArrayList<Object>();   // DoublePredicate or Predicate<Object>
+    private int[] keySlots = new int[0];
+    private int[] aggregateSlots = new int[0];
+    private int[] aggregateKinds = new int[0];
+    private boolean[] numbers = new boolean[0];                        // by slot, read as a number
+    private boolean[] values = new boolean[0];                         // by slot, read as itemValue()
+
+    /* a structure level of the row paths, the slot of a value at it or -1 */
+    private static final class Node
+    {
+        public final HashMap<String, Node> children = new HashMap<String, Node>();
+        public int slot = -1;
+    }
+
+    /* the values of the row being read */
+    private static final class Row
+    {
+        public final double[] numbers;
+        public final Object[] values;
+        public final boolean[] present;
+        public Node[] nodes = new Node[8];
+
+        public Row(final int slots)
+        {
+            numbers = new double[slots];
+            values = new Object[slots];
+            present = new boolean[slots];
+        }
+    }
+
+    public SsdsQuery(final String rows)
+    {
+        if (rows.isEmpty())
+        {
+            throw new RuntimeException("no row path");
+        }
+        this.rows = rows;
+        this.rowLevel = rows.split("/").length - 1;
+    }
+
+    /* rows whose number at path is accepted by test */
+    public SsdsQuery where(final String path, final DoublePredicate test)
+    {
+        filterSlots.add(slot(path, true, false));
+        filters.add(test);
+        return this;
+    }
+
+    /* rows whose itemValue() at path is accepted by test */
+    public SsdsQuery whereValue(final String path, final Predicate<Object> test)
+    {
+        filterSlots.add(slot(path, false, true));
+        filters.add(test);
+        return this;
+    }
+
+    /*
+     * groups rows by the values at paths, a group key is the value for one path and a
+     * list of the values for several, null where a row lacks the path. without groupBy
+     * every row is in the one group keyed null.
+     */
+    public SsdsQuery groupBy(final String... paths)
+    {
+        keySlots = new int[paths.length];
+        for (int i = 0; i < paths.length; i++)
+        {
+            keySlots[i] = slot(paths[i], false, true);
+        }
+        return this;
+    }
+
+    public SsdsQuery sum(final String path)
+    {
+        return aggregate(path, SUM);
+    }
+
+    public SsdsQuery min(final String path)
+    {
+        return aggregate(path, MIN);
+    }
+
+    public SsdsQuery max(final String path)
+    {
+        return aggregate(path, MAX);
+    }
+
+    public SsdsQuery avg(final String path)
+    {
+        return aggregate(path, AVG);
+    }
+
+    /*
+     * runs the query on the rest of the stream of reader, whose projection it replaces.
+     */
+    public Map<Object, double[]> run(final SequentialStructuredDataStream reader)
+    {
+        return finish(scan(reader));
+    }
+
+    /*
+     * runs the query on every file with up to threads of them read at the same time,
+     * the partial aggregates of the files are merged when all are done.
+     */
+    public Map<Object, double[]> run(final List<Path> files, final int threads)
+    {
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, files.size())));
+        try {
+            final ArrayList<Future<HashMap<Object, double[]>>> partials = new ArrayList<Future<HashMap<Object, double[]>>>();
+            for (final Path file : files)
+            {
+                partials.add(executor.submit(() -> {
+                    final SequentialStructuredDataStream reader = SequentialStructuredDataStream.createReader(file);
+                    try {
+                        return scan(reader);
+                    } finally {
+                        reader.close();
+                    }
+                }));
+            }
+            final HashMap<Object, double[]> merged = new HashMap<Object, double[]>();
+            for (Future<HashMap<Object, double[]>> partial : partials)
+            {
+                for (Map.Entry<Object, double[]> e : partial.get().entrySet())
+                {
+                    final double[] state = merged.get(e.getKey());
+                    if (state == null)
+                    {
+                        merged.put(e.getKey(), e.getValue());
+                    }
+                    else
+                    {
+                        merge(state, e.getValue());
+                    }
+                }
+            }
+            return finish(merged);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("query interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new RuntimeException("query failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private SsdsQuery aggregate(final String path, final int kind)
+    {
+        final int n = aggregateSlots.length;
+        aggregateSlots = Arrays.copyOf(aggregateSlots, n + 1);
+        aggregateKinds = Arrays.copyOf(aggregateKinds, n + 1);
+        aggregateSlots[n] = slot(path, true, false);
+        aggregateKinds[n] = kind;
+        return this;
+    }
+
+    /*
+     * the slot of the values at path, added with its nodes when first used.
+     */
+    private int slot(final String path, final boolean number, final boolean value)
+    {
+        int slot = paths.indexOf(path);
+        if (slot < 0)
+        {
+            Node node = root;
+            for (String name : path.split("/"))
+            {
+                if (node.slot >= 0)
+                {
+                    throw new RuntimeException("path inside a value: " + path);
+                }
+                Node child = node.children.get(name);
+                if (child == null)
+                {
+                    child = new Node();
+                    node.children.put(name, child);
+                }
+                node = child;
+            }
+            if (!node.children.isEmpty())
+            {
+                throw new RuntimeException("path is a structure: " + path);
+            }
+            slot = paths.size();
+            paths.add(path);
+            node.slot = slot;
+            numbers = Arrays.copyOf(numbers, slot + 1);
+            values = Arrays.copyOf(values, slot + 1);
+        }
+        numbers[slot] |= number;
+        values[slot] |= value;
+        return slot;
+    }
+
+    /*
+     * partial aggregates of the rows of one stream, per group the row count then the
+     * accumulated value and the count of values of each aggregate.
+     */
+    private HashMap<Object, double[]> scan(final SequentialStructuredDataStream reader)
+    {
+        final String[] projection = new String[Math.max(1, paths.size())];
+        projection[0] = rows;
+        for (int i = 0; i < paths.size(); i++)
+        {
+            projection[i] = rows + "/" + paths.get(i);
+        }
+        reader.setProjection(projection);
+        final HashMap<Object, double[]> groups = new HashMap<Object, double[]>();
+        final Row row = new Row(paths.size());
+        while (reader.readItem())
+        {
+            if (reader.isStartItem() && reader.itemLevel() == rowLevel)
+            {
+                read_row(reader, row);
+                if (accepts(row))
+                {
+                    add(groups, row);
+                }
+            }
+        }
+        return groups;
+    }
+
+    private void read_row(final SequentialStructuredDataStream reader, final Row row)
+    {
+        Arrays.fill(row.present, false);
+        if (root.children.isEmpty())
+        {
+            reader.skipCurrentStructure();
+            return;
+        }
+        Node node = root;
+        int depth = 0;
+        while (reader.readItem())
+        {
+            if (reader.isEndItem())
+            {
+                if (depth == 0)
+                {
+                    return;
+                }
+                node = row.nodes[--depth];
+                continue;
+            }
+            final Node child = node.children.get(reader.itemName());
+            if (reader.isStartItem())
+            {
+                if (child == null || child.slot >= 0)
+                {
+                    reader.skipCurrentStructure();
+                    continue;
+                }
+                if (depth == row.nodes.length)
+                {
+                    row.nodes = Arrays.copyOf(row.nodes, depth * 2);
+                }
+                row.nodes[depth++] = node;
+                node = child;
+                continue;
+            }
+            if (child == null || child.slot < 0)
+            {
+                continue;
+            }
+            final int slot = child.slot;
+            if (numbers[slot])
+            {
+                row.numbers[slot] = number(reader);
+            }
+            if (values[slot])
+            {
+                row.values[slot] = reader.itemValue();
+            }
+            row.present[slot] = true;
+        }
+    }
+
+    private static double number(final SequentialStructuredDataStream reader)
+    {
+        switch (reader.itemType())
+        {
+            case SequentialStructuredDataStream.TYPE_SINGLE:
+            case SequentialStructuredDataStream.TYPE_DOUBLE:
+                return reader.itemDouble();
+            case SequentialStructuredDataStream.TYPE_UINT64:
+            case SequentialStructuredDataStream.TYPE_FIXED64:
+                {
+                    final long value = reader.itemLong();
+                    return value >= 0 ? value : (double)(value >>> 1) * 2.0;
+                }
+            default:
+                // itemLong() throws for items that are not numbers
+                return reader.itemLong();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean accepts(final Row row)
+    {
+        for (int i = 0; i < filters.size(); i++)
+        {
+            final int slot = filterSlots.get(i);
+            if (!row.present[slot])
+            {
+                return false;
+            }
+            final Object filter = filters.get(i);
+            if (filter instanceof DoublePredicate ? !((DoublePredicate)filter).test(row.numbers[slot]) : !((Predicate<Object>)filter).test(row.values[slot]))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void add(final HashMap<Object, double[]> groups, final Row row)
+    {
+        final Object key;
+        switch (keySlots.length)
+        {
+            case 0:
+                key = null;
+                break;
+            case 1:
+                key = row.present[keySlots[0]] ? row.values[keySlots[0]] : null;
+                break;
+            default:
+                {
+                    final Object[] keys = new Object[keySlots.length];
+                    for (int i = 0; i < keys.length; i++)
+                    {
+                        keys[i] = row.present[keySlots[i]] ? row.values[keySlots[i]] : null;
+                    }
+                    key = Arrays.asList(keys);
+                }
+                break;
+        }
+        double[] state = groups.get(key);
+        if (state == null)
+        {
+            state = new double[1 + 2 * aggregateSlots.length];
+            for (int i = 0; i < aggregateSlots.length; i++)
+            {
+                state[1 + 2 * i] = aggregateKinds[i] == MIN ? Double.POSITIVE_INFINITY : aggregateKinds[i] == MAX ? Double.NEGATIVE_INFINITY : 0;
+            }
+            groups.put(key, state);
+        }
+        state[0]++;
+        for (int i = 0; i < aggregateSlots.length; i++)
+        {
+            final int slot = aggregateSlots[i];
+            if (!row.present[slot])
+            {
+                continue;
+            }
+            final double value = row.numbers[slot];
+            final int k = 1 + 2 * i;
+            switch (aggregateKinds[i])
+            {
+                case MIN:
+                    state[k] = Math.min(state[k], value);
+                    break;
+                case MAX:
+                    state[k] = Math.max(state[k], value);
+                    break;
+                default:
+                    state[k] += value;
+                    break;
+            }
+            state[k + 1]++;
+        }
+    }
+
+    private void merge(final double[] state, final double[] other)
+    {
+        state[0] += other[0];
+        for (int i = 0; i < aggregateSlots.length; i++)
+        {
+            final int k = 1 + 2 * i;
+            switch (aggregateKinds[i])
+            {
+                case MIN:
+                    state[k] = Math.min(state[k], other[k]);
+                    break;
+                case MAX:
+                    state[k] = Math.max(state[k], other[k]);
+                    break;
+                default:
+                    state[k] += other[k];
+                    break;
+            }
+            state[k + 1] += other[k + 1];
+        }
+    }
+
+    /*
+     * turns partial aggregates into results, aggregates without any value are NaN
+     * except for sums which are 0.
+     */
+    private Map<Object, double[]> finish(final HashMap<Object, double[]> groups)
+    {
+        for (Map.Entry<Object, double[]> e : groups.entrySet())
+        {
+            final double[] state = e.getValue();
+            final double[] result = new double[1 + aggregateSlots.length];
+            result[0] = state[0];
+            for (int i = 0; i < aggregateSlots.length; i++)
+            {
+                final double value = state[1 + 2 * i];
+                final double count = state[2 + 2 * i];
+                switch (aggregateKinds[i])
+                {
+                    case SUM:
+                        result[1 + i] = value;
+                        break;
+                    case AVG:
+                        result[1 + i] = count > 0 ? value / count : Double.NaN;
+                        break;
+                    default:
+                        result[1 + i] = count > 0 ? value : Double.NaN;
+                        break;
+                }
+            }
+            e.setValue(result);
+        }
+        return groups;
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+ 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.RecordComponent;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/*
+ * binding of a record or @SsdsRecord class to a structure, used by writeObject() and
+ * readObject(). the class is looked at once: its accessors are combined into one
+ * method handle that writes every component through the writer's field handles,
+ * and its constructor or setters take primitives as longs, floating point ones as
+ * their double bits, so values are neither boxed nor reflected on per object.
+ */
+public final class SsdsRecordCodec<T>
+{
+    private static final ClassValue<SsdsRecordCodec<?>> CODECS = new ClassValue<SsdsRecordCodec<?>>()
+    {
+        protected SsdsRecordCodec<?> computeValue(final Class<?> type)
+        {
+            return new SsdsRecordCodec<Object>(type);
+        }
+    };
+
+    private static final MethodType SET_LONG = MethodType.methodType(void.class, Object.class, long.class);
+    private static final MethodType SET_OBJECT = MethodType.methodType(void.class, Object.class, Object.class);
+    private static final MethodType CREATE = MethodType.methodType(Object.class, long[].class, Object[].class);
+    private static final MethodType WRITE = MethodType.methodType(void.class, SequentialStructuredDataStream.class, SequentialStructuredDataStream.FieldHandle[].class, Object.class);
+
+    final String typeName;
+    private final String[] names;
+    private final int[] kinds;
+    private final Class<?>[] types;
+    private final MethodHandle[] setters;    // classes only, records are made by create
+    private final MethodHandle create;       // records: (long[], Object[]) to the record, classes: () to a new instance
+    private final MethodHandle write;        // (writer, handles, object) writing every component through its handle
+    private final HashMap<String, Integer> slots = new HashMap<String, Integer>();
+    private final HashMap<String, Object>[] constants;
+
+    @SuppressWarnings("unchecked")
+    public static <T> SsdsRecordCodec<T> forClass(final Class<T> type)
+    {
+        return (SsdsRecordCodec<T>)CODECS.get(type);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private SsdsRecordCodec(final Class<?> type)
+    {
+        final SsdsRecord named = type.getAnnotation(SsdsRecord.class);
+        if (!type.isRecord() && named == null)
+        {
+            throw new RuntimeException("not a record or @SsdsRecord class: " + type.getName());
+        }
+        typeName = named != null && !named.value().isEmpty() ? named.value() : type.getSimpleName();
+        try
+        {
+            final MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+            final ArrayList<String> n = new ArrayList<String>();
+            final ArrayList<Class<?>> t = new ArrayList<Class<?>>();
+            final ArrayList<MethodHandle> g = new ArrayList<MethodHandle>();
+            final ArrayList<MethodHandle> s = new ArrayList<MethodHandle>();
+            if (type.isRecord())
+            {
+                for (RecordComponent c : type.getRecordComponents())
+                {
+                    final SsdsRecord rename = c.getAnnotation(SsdsRecord.class);
+                    n.add(rename != null && !rename.value().isEmpty() ? rename.value() : c.getName());
+                    t.add(c.getType());
+                    g.add(lookup.unreflect(c.getAccessor()));
+                }
+            }
+            else
+            {
+                for (Field f : type.getDeclaredFields())
+                {
+                    final SsdsRecord rename = f.getAnnotation(SsdsRecord.class);
+                    if (rename == null || Modifier.isStatic(f.getModifiers()))
+                    {
+                        continue;
+                    }
+                    n.add(rename.value().isEmpty() ? f.getName() : rename.value());
+                    t.add(f.getType());
+                    g.add(lookup.unreflectGetter(f));
+                    s.add(lookup.unreflectSetter(f));
+                }
+            }
+            final int count = n.size();
+            names = n.toArray(new String[count]);
+            types = t.toArray(new Class<?>[count]);
+            kinds = new int[count];
+            setters = type.isRecord() ? null : new MethodHandle[count];
+            constants = new HashMap[count];
+            for (int i = 0; i < count; i++)
+            {
+                kinds[i] = kind(types[i]);
+                slots.put(names[i], i);
+                if (setters != null)
+                {
+                    setters[i] = primitive(i) ? MethodHandles.explicitCastArguments(MethodHandles.filterArguments(s.get(i), 1, from_long(types[i])), SET_LONG) : s.get(i).asType(SET_OBJECT);
+                }
+                if (kinds[i] == SequentialStructuredDataStream.TYPE_ENUM)
+                {
+                    constants[i] = new HashMap<String, Object>();
+                    for (Object constant : types[i].getEnumConstants())
+                    {
+                        constants[i].put(((Enum<?>)constant).name(), constant);
+                    }
+                }
+            }
+            // one handle for the whole object, so that the jit compiles the components as straight line code
+            final MethodHandle[] components = new MethodHandle[count];
+            for (int i = 0; i < count; i++)
+            {
+                components[i] = write_component(i, g.get(i));
+            }
+            write = sequence(components, 0, count);
+            if (type.isRecord())
+            {
+                // feeds every constructor parameter from its slot of one of the two arrays
+                final MethodHandle constructor = lookup.findConstructor(type, MethodType.methodType(void.class, types));
+                final MethodHandle[] filters = new MethodHandle[count];
+                final int[] reorder = new int[count];
+                for (int i = 0; i < count; i++)
+                {
+                    if (primitive(i))
+                    {
+                        filters[i] = MethodHandles.filterReturnValue(MethodHandles.insertArguments(MethodHandles.arrayElementGetter(long[].class), 1, i), from_long(types[i]));
+                        reorder[i] = 0;
+                    }
+                    else
+                    {
+                        filters[i] = MethodHandles.insertArguments(MethodHandles.arrayElementGetter(Object[].class), 1, i).asType(MethodType.methodType(types[i], Object[].class));
+                        reorder[i] = 1;
+                    }
+                }
+                final MethodHandle filtered = MethodHandles.filterArguments(constructor, 0, filters);
+                create = MethodHandles.permuteArguments(filtered, MethodType.methodType(type, long[].class, Object[].class), reorder).asType(CREATE);
+            }
+            else
+            {
+                create = lookup.findConstructor(type, MethodType.methodType(void.class)).asType(MethodType.methodType(Object.class));
+            }
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new RuntimeException("cannot bind " + type.getName(), e);
+        }
+    }
+
+    /*
+     * (writer, handles, object) writing component i, null objects and arrays are
+     * left out as the writeXxx methods do for null.
+     */
+    private MethodHandle write_component(final int i, final MethodHandle getter) throws ReflectiveOperationException
+    {
+        final MethodHandles.Lookup lookup = MethodHandles.lookup();
+        final Class<?> handle = SequentialStructuredDataStream.FieldHandle.class;
+        final String method;
+        final Class<?> value;
+        switch (kinds[i])
+        {
+            case SequentialStructuredDataStream.TYPE_BOOLEAN: method = "writeBool"; value = boolean.class; break;
+            case SequentialStructuredDataStream.TYPE_SINT32: method = "writeSInt32"; value = int.class; break;
+            case SequentialStructuredDataStream.TYPE_SINT64: method = "writeSInt64"; value = long.class; break;
+            case SequentialStructuredDataStream.TYPE_SINGLE: method = "writeSingle"; value = float.class; break;
+            case SequentialStructuredDataStream.TYPE_DOUBLE: method = "writeDouble"; value = double.class; break;
+            case SequentialStructuredDataStream.TYPE_STRING: method = "writeString"; value = String.class; break;
+            case SequentialStructuredDataStream.TYPE_BYTES: method = "writeBytes"; value = byte[].class; break;
+            default:
+                {
+                    // enums, arrays and nested objects go through write_other
+                    final MethodHandle other = lookup.findStatic(SsdsRecordCodec.class, "write_other", MethodType.methodType(void.class, SequentialStructuredDataStream.class, handle, Object.class, int.class, String.class));
+                    final MethodHandle bound = MethodHandles.insertArguments(other, 3, kinds[i], names[i]);
+                    return MethodHandles.filterArguments(bound, 1, handle_getter(i), getter.asType(MethodType.methodType(Object.class, Object.class)));
+                }
+        }
+        final MethodHandle target = lookup.findVirtual(SequentialStructuredDataStream.class, method, MethodType.methodType(void.class, handle, value));
+        return MethodHandles.filterArguments(target, 1, handle_getter(i), getter.asType(MethodType.methodType(value, Object.class)));
+    }
+
+    // runs components[from, to) in order, nested as a balanced tree to keep the handle shallow
+    private static MethodHandle sequence(final MethodHandle[] components, final int from, final int to)
+    {
+        if (to - from == 0)
+        {
+            return MethodHandles.empty(WRITE);
+        }
+        if (to - from == 1)
+        {
+            return components[from];
+        }
+        final int mid = (from + to) >>> 1;
+        return MethodHandles.foldArguments(sequence(components, mid, to), sequence(components, from, mid));
+    }
+
+    private static MethodHandle handle_getter(final int i)
+    {
+        return MethodHandles.insertArguments(MethodHandles.arrayElementGetter(SequentialStructuredDataStream.FieldHandle[].class), 1, i);
+    }
+
+    private static void write_other(final SequentialStructuredDataStream writer, final SequentialStructuredDataStream.FieldHandle handle, final Object value, final int kind, final String name)
+    {
+        if (value == null)
+        {
+            return;
+        }
+        switch (kind)
+        {
+            case SequentialStructuredDataStream.TYPE_ENUM: writer.writeEnum(handle, ((Enum<?>)value).name()); break;
+            case SequentialStructuredDataStream.TYPE_SINT32_ARRAY: writer.writeSInt32Array(handle, (int[])value, 0, ((int[])value).length); break;
+            case SequentialStructuredDataStream.TYPE_SINT64_ARRAY: writer.writeSInt64Array(handle, (long[])value, 0, ((long[])value).length); break;
+            case SequentialStructuredDataStream.TYPE_SINGLE_ARRAY: writer.writeSingleArray(handle, (float[])value, 0, ((float[])value).length); break;
+            case SequentialStructuredDataStream.TYPE_DOUBLE_ARRAY: writer.writeDoubleArray(handle, (double[])value, 0, ((double[])value).length); break;
+            default: writer.writeObject(name, value); break;
+        }
+    }
+
+    private static int kind(final Class<?> type)
+    {
+        if (type == boolean.class) return SequentialStructuredDataStream.TYPE_BOOLEAN;
+        if (type == int.class || type == short.class || type == byte.class || type == char.class) return SequentialStructuredDataStream.TYPE_SINT32;
+        if (type == long.class) return SequentialStructuredDataStream.TYPE_SINT64;
+        if (type == float.class) return SequentialStructuredDataStream.TYPE_SINGLE;
+        if (type == double.class) return SequentialStructuredDataStream.TYPE_DOUBLE;
+        if (type == String.class) return SequentialStructuredDataStream.TYPE_STRING;
+        if (type == byte[].class) return SequentialStructuredDataStream.TYPE_BYTES;
+        if (type == int[].class) return SequentialStructuredDataStream.TYPE_SINT32_ARRAY;
+        if (type == long[].class) return SequentialStructuredDataStream.TYPE_SINT64_ARRAY;
+        if (type == float[].class) return SequentialStructuredDataStream.TYPE_SINGLE_ARRAY;
+        if (type == double[].class) return SequentialStructuredDataStream.TYPE_DOUBLE_ARRAY;
+        if (type.isEnum()) return SequentialStructuredDataStream.TYPE_ENUM;
+        if (type.isRecord() || type.isAnnotationPresent(SsdsRecord.class)) return SequentialStructuredDataStream.TYPE_START_GROUP;
+        throw new RuntimeException("unsupported type " + type.getName());
+    }
+
+    // long to a primitive of the given type, floating point values come as their double bits
+    private static MethodHandle from_long(final Class<?> type) throws ReflectiveOperationException
+    {
+        if (type != float.class && type != double.class)
+        {
+            return MethodHandles.explicitCastArguments(MethodHandles.identity(long.class), MethodType.methodType(type, long.class));
+        }
+        final MethodHandle bits = MethodHandles.lookup().findStatic(Double.class, "longBitsToDouble", MethodType.methodType(double.class, long.class));
+        return MethodHandles.explicitCastArguments(bits, MethodType.methodType(type, long.class));
+    }
+
+    int size()
+    {
+        return names.length;
+    }
+
+    String name(final int i)
+    {
+        return names[i];
+    }
+
+    /* one of the SequentialStructuredDataStream TYPE_ constants, TYPE_START_GROUP for nested objects */
+    int kind(final int i)
+    {
+        return kinds[i];
+    }
+
+    Class<?> type(final int i)
+    {
+        return types[i];
+    }
+
+    boolean primitive(final int i)
+    {
+        return kinds[i] >= SequentialStructuredDataStream.TYPE_BOOLEAN && kinds[i] <= SequentialStructuredDataStream.TYPE_DOUBLE && kinds[i] != SequentialStructuredDataStream.TYPE_ENUM;
+    }
+
+    /* index of the component bound to itemName, -1 if none is */
+    int slot(final String itemName)
+    {
+        final Integer slot = slots.get(itemName);
+        return slot == null ? -1 : slot;
+    }
+
+    Object constant(final int i, final String name)
+    {
+        final Object constant = constants[i].get(name);
+        if (constant == null)
+        {
+            throw new RuntimeException("unknown enum value " + name);
+        }
+        return constant;
+    }
+
+    /* writes the components of value, handles holds the writer's handle of each, null for nested objects */
+    void write(final SequentialStructuredDataStream writer, final SequentialStructuredDataStream.FieldHandle[] handles, final Object value)
+    {
+        try
+        {
+            write.invokeExact(writer, handles, value);
+        }
+        catch (RuntimeException | Error e)
+        {
+            throw e;
+        }
+        catch (Throwable e)
+        {
+            throw new RuntimeException("cannot write " + typeName, e);
+        }
+    }
+
+    /* makes the object from the values collected by slot, primitives widened to long and floating point ones as their double bits */
+    @SuppressWarnings("unchecked")
+    T create(final long[] primitives, final Object[] objects)
+    {
+        try
+        {
+            if (setters == null)
+            {
+                return (T)(Object)create.invokeExact(primitives, objects);
+            }
+            final Object value = (Object)create.invokeExact();
+            for (int i = 0; i < setters.length; i++)
+            {
+                if (primitive(i))
+                {
+                    setters[i].invokeExact(value, primitives[i]);
+                }
+                else if (objects[i] != null)
+                {
+                    setters[i].invokeExact(value, objects[i]);
+                }
+            }
+            return (T)value;
+        }
+        catch (RuntimeException | Error e)
+        {
+            throw e;
+        }
+        catch (Throwable e)
+        {
+            throw new RuntimeException("cannot create " + typeName, e);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+ 
+import java.nio.ByteBuffer;
+
+/*
+ * callbacks of SequentialStructuredDataStream.decode(), called straight from the
+ * wire decoding with unboxed values. item ids are the itemIndex() of each item and
+ * names are the strings of the schema, so comparing them with == is enough once a
+ * name was looked up. byte values are only valid during the callback. every method
+ * does nothing unless overridden.
+ */
+public interface SsdsVisitor
+{
+    /* a structure starts, returning false skips it without any further callback for it, its end included */
+    public default boolean onStart(int itemId, String name, int level)
+    {
+        return true;
+    }
+
+    public default void onEnd(int itemId, String name, int level)
+    {
+    }
+
+    public default void onBoolean(int itemId, String name, boolean value)
+    {
+    }
+
+    /* uint32, sint32 and fixed32 items */
+    public default void onInt(int itemId, String name, int value)
+    {
+    }
+
+    /* uint64, sint64 and fixed64 items */
+    public default void onLong(int itemId, String name, long value)
+    {
+    }
+
+    public default void onFloat(int itemId, String name, float value)
+    {
+    }
+
+    public default void onDouble(int itemId, String name, double value)
+    {
+    }
+
+    /* value is the enum value string of the schema, ordinal its index among them */
+    public default void onEnum(int itemId, String name, int ordinal, String value)
+    {
+    }
+
+    /* length UTF8 bytes at offset of buffer, absolute, the buffer position is not to be relied on */
+    public default void onString(int itemId, String name, ByteBuffer utf8, int offset, int length)
+    {
+    }
+
+    public default void onBytes(int itemId, String name, ByteBuffer bytes, int offset, int length)
+    {
+    }
+
+    /* a packed array of the given TYPE_ constant, read with the reader's itemArrayLength() and itemInts() and the like */
+    public default void onArray(int itemId, String name, int type)
+    {
+    }
+}